@@ -0,0 +1,83 @@
+package org.fogbowcloud.ssh;
+
+/**
+ * Local window of a forwarded channel that grows with the bandwidth-delay
+ * product of the agent link, up to a cap.
+ * <p>
+ * Like the fixed window, it is refilled once less than half of it is left.
+ * The round trip time is estimated from the refills: the first byte sent
+ * with the credit of a refill can't arrive earlier than one round trip after
+ * the refill, so the time until the credit left at refill time is used up is
+ * an upper bound of the round trip time, and a tight one when the agent is
+ * waiting for window. An agent limited by the window gets about half of it
+ * per round trip, so when the throughput since the previous refill times the
+ * smallest round trip seen reaches 3/8 of the window, the window doubles. A
+ * channel limited by the link keeps its window.
+ */
+public class AdaptiveWindow {
+
+	private final int maxWindowSize;
+	private int windowSize;
+
+	private long consumed;
+	private long consumedAtRefill;
+	private long refillTime;
+	private long creditAtRefill;
+	private boolean measuringRoundTrip;
+	private long roundTripTime = -1;
+
+	public AdaptiveWindow(int initialWindowSize, int maxWindowSize, long now) {
+		this.windowSize = initialWindowSize;
+		this.maxWindowSize = Math.max(initialWindowSize, maxWindowSize);
+		this.refillTime = now;
+		this.creditAtRefill = initialWindowSize;
+		this.measuringRoundTrip = true;
+	}
+
+	/**
+	 * Accounts len bytes received from the agent.
+	 *
+	 * @param remaining
+	 *            the window left after these bytes.
+	 * @return how much to expand the window by and send as window adjust, or
+	 *         0 if no refill is due yet.
+	 */
+	public synchronized int consume(int len, int remaining, long now) {
+		consumed += len;
+		if (measuringRoundTrip && consumed - consumedAtRefill > creditAtRefill) {
+			long sample = now - refillTime;
+			if (roundTripTime < 0 || sample < roundTripTime) {
+				roundTripTime = sample;
+			}
+			measuringRoundTrip = false;
+		}
+		if (remaining >= windowSize / 2) {
+			return 0;
+		}
+		long elapsed = now - refillTime;
+		if (roundTripTime > 0 && elapsed > 0 && windowSize < maxWindowSize) {
+			long bytesInFlight = (consumed - consumedAtRefill) * roundTripTime / elapsed;
+			if (8 * bytesInFlight >= 3 * (long) windowSize) {
+				windowSize = (int) Math.min(maxWindowSize, 2L * windowSize);
+			}
+		}
+		refillTime = now;
+		consumedAtRefill = consumed;
+		creditAtRefill = remaining;
+		measuringRoundTrip = true;
+		return windowSize - remaining;
+	}
+
+	public synchronized int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return the smallest round trip time seen in milliseconds, or -1 if none
+	 *         was measured yet.
+	 */
+	public synchronized long getRoundTripTime() {
+		return roundTripTime;
+	}
+
+}
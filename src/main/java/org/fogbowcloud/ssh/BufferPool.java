@@ -0,0 +1,58 @@
+package org.fogbowcloud.ssh;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of byte arrays of one size, used for packet buffers on the
+ * data path. Arrays of other sizes are allocated and dropped as usual, so a
+ * caller can always release whatever array it ends up with.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * @return an array of at least size bytes.
+	 */
+	public byte[] acquire(int size) {
+		if (size > bufferSize) {
+			return new byte[size];
+		}
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			return new byte[bufferSize];
+		}
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		if (pooledBuffers.incrementAndGet() > maxBuffers) {
+			pooledBuffers.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getPooledBuffers() {
+		return pooledBuffers.get();
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.fogbowcloud.ssh;
+
+import java.util.Map;
+
+import org.apache.sshd.common.FactoryManager;
+
+/**
+ * Initial window and maximum packet size advertised by the forwarded channels
+ * of an ssh server, and the cap of the {@link AdaptiveWindow} when adaptive
+ * windows are on. The values are kept as properties of the ssh server, where
+ * each new channel reads them.
+ */
+public class ChannelWindowSettings {
+
+	/** Property with the cap of adaptive windows; absent means fixed windows. */
+	public static final String ADAPTIVE_WINDOW_MAX_SIZE = "adaptive-window-max-size";
+
+	private final int windowSize;
+	private final int packetSize;
+	private final int adaptiveWindowMaxSize;
+
+	/**
+	 * @param windowSize
+	 *            initial window size in bytes, 0 for the library default.
+	 * @param packetSize
+	 *            maximum packet size in bytes, 0 for the library default.
+	 * @param adaptiveWindowMaxSize
+	 *            cap of adaptive windows in bytes, 0 for fixed windows.
+	 */
+	public ChannelWindowSettings(int windowSize, int packetSize, int adaptiveWindowMaxSize) {
+		this.windowSize = windowSize;
+		this.packetSize = packetSize;
+		this.adaptiveWindowMaxSize = adaptiveWindowMaxSize;
+	}
+
+	public void apply(Map<String, String> properties) {
+		put(properties, FactoryManager.WINDOW_SIZE, windowSize);
+		put(properties, FactoryManager.MAX_PACKET_SIZE, packetSize);
+		put(properties, ADAPTIVE_WINDOW_MAX_SIZE, adaptiveWindowMaxSize);
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public int getAdaptiveWindowMaxSize() {
+		return adaptiveWindowMaxSize;
+	}
+
+	private static void put(Map<String, String> properties, String name, int value) {
+		if (value > 0) {
+			properties.put(name, String.valueOf(value));
+		} else {
+			properties.remove(name);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.fogbowcloud.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.common.Cipher;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.cipher.BaseCipher;
+
+/**
+ * AES cipher that encrypts packets through a scratch array kept by the
+ * cipher. sshd encrypts packets in place, and the JDK copies the input of an
+ * in-place update to a new array first, so every packet allocated a copy of
+ * itself.
+ */
+public class CopyFreeCipher extends BaseCipher {
+
+	private static final String[][] AES_CIPHERS = { { "aes128-ctr", "16", "AES/CTR/NoPadding" },
+			{ "aes192-ctr", "24", "AES/CTR/NoPadding" }, { "aes256-ctr", "32", "AES/CTR/NoPadding" },
+			{ "aes128-cbc", "16", "AES/CBC/NoPadding" }, { "aes192-cbc", "24", "AES/CBC/NoPadding" },
+			{ "aes256-cbc", "32", "AES/CBC/NoPadding" } };
+
+	private byte[] scratch = new byte[0];
+
+	public CopyFreeCipher(int ivsize, int bsize, String algorithm, String transformation) {
+		super(ivsize, bsize, algorithm, transformation);
+	}
+
+	@Override
+	public void update(byte[] input, int inputOffset, int inputLen) throws Exception {
+		if (scratch.length < inputLen) {
+			scratch = new byte[inputLen];
+		}
+		int outputLen = cipher.update(input, inputOffset, inputLen, scratch, 0);
+		System.arraycopy(scratch, 0, input, inputOffset, outputLen);
+	}
+
+	/**
+	 * @return cipherFactories with the AES ciphers replaced by copy free ones,
+	 *         in the same order.
+	 */
+	public static List<NamedFactory<Cipher>> replaceAesCiphers(List<NamedFactory<Cipher>> cipherFactories) {
+		List<NamedFactory<Cipher>> replaced = new ArrayList<NamedFactory<Cipher>>(cipherFactories.size());
+		for (NamedFactory<Cipher> cipherFactory : cipherFactories) {
+			NamedFactory<Cipher> copyFreeFactory = cipherFactory;
+			for (String[] aesCipher : AES_CIPHERS) {
+				if (aesCipher[0].equals(cipherFactory.getName())) {
+					copyFreeFactory = new Factory(aesCipher[0], Integer.parseInt(aesCipher[1]), aesCipher[2]);
+				}
+			}
+			replaced.add(copyFreeFactory);
+		}
+		return replaced;
+	}
+
+	public static class Factory implements NamedFactory<Cipher> {
+
+		private final String name;
+		private final int keySize;
+		private final String transformation;
+
+		public Factory(String name, int keySize, String transformation) {
+			this.name = name;
+			this.keySize = keySize;
+			this.transformation = transformation;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Cipher create() {
+			return new CopyFreeCipher(16, keySize, "AES", transformation);
+		}
+	}
+
+}
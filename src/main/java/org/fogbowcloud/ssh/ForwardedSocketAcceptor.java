@@ -0,0 +1,151 @@
+package org.fogbowcloud.ssh;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.io.IoAcceptor;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.nio2.Nio2Service;
+
+/**
+ * Acceptor of the forwarded ports, like the Nio2Acceptor of sshd but creating
+ * {@link ForwardedSocketSession}s.
+ */
+public class ForwardedSocketAcceptor extends Nio2Service implements IoAcceptor {
+
+	private final Map<SocketAddress, AsynchronousServerSocketChannel> channels = new ConcurrentHashMap<SocketAddress, AsynchronousServerSocketChannel>();
+	private final int backlog;
+
+	public ForwardedSocketAcceptor(FactoryManager manager, IoHandler handler, AsynchronousChannelGroup group) {
+		super(manager, handler, group);
+		String backlog = manager.getProperties().get(FactoryManager.SOCKET_BACKLOG);
+		this.backlog = backlog == null ? 0 : Integer.parseInt(backlog);
+	}
+
+	@Override
+	public void bind(Collection<? extends SocketAddress> addresses) throws IOException {
+		for (SocketAddress address : addresses) {
+			logger.debug("Binding ForwardedSocketAcceptor to address {}", address);
+			AsynchronousServerSocketChannel socket = AsynchronousServerSocketChannel.open(group);
+			setOption(socket, FactoryManager.SOCKET_KEEPALIVE, StandardSocketOptions.SO_KEEPALIVE, null);
+			setOption(socket, FactoryManager.SOCKET_LINGER, StandardSocketOptions.SO_LINGER, null);
+			setOption(socket, FactoryManager.SOCKET_RCVBUF, StandardSocketOptions.SO_RCVBUF, null);
+			setOption(socket, FactoryManager.SOCKET_REUSEADDR, StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+			setOption(socket, FactoryManager.SOCKET_SNDBUF, StandardSocketOptions.SO_SNDBUF, null);
+			setOption(socket, FactoryManager.TCP_NODELAY, StandardSocketOptions.TCP_NODELAY, null);
+			socket.bind(address, backlog);
+			SocketAddress boundAddress = socket.getLocalAddress();
+			channels.put(boundAddress, socket);
+			socket.accept(boundAddress, new AcceptHandler(socket));
+		}
+	}
+
+	@Override
+	public void bind(SocketAddress address) throws IOException {
+		bind(Collections.singleton(address));
+	}
+
+	@Override
+	public void unbind() {
+		logger.debug("Unbinding");
+		unbind(getBoundAddresses());
+	}
+
+	@Override
+	public void unbind(Collection<? extends SocketAddress> addresses) {
+		for (SocketAddress address : addresses) {
+			AsynchronousServerSocketChannel channel = channels.remove(address);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.warn("Error unbinding socket", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void unbind(SocketAddress address) {
+		unbind(Collections.singleton(address));
+	}
+
+	@Override
+	public Set<SocketAddress> getBoundAddresses() {
+		return new HashSet<SocketAddress>(channels.keySet());
+	}
+
+	@Override
+	public CloseFuture close(boolean immediately) {
+		unbind();
+		return super.close(immediately);
+	}
+
+	@Override
+	public void doCloseImmediately() {
+		for (SocketAddress address : channels.keySet()) {
+			try {
+				channels.get(address).close();
+			} catch (IOException e) {
+				logger.debug("Exception caught while closing channel", e);
+			}
+		}
+		super.doCloseImmediately();
+	}
+
+	private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, SocketAddress> {
+
+		private final AsynchronousServerSocketChannel socket;
+
+		AcceptHandler(AsynchronousServerSocketChannel socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void completed(AsynchronousSocketChannel result, SocketAddress address) {
+			if (!channels.containsKey(address)) {
+				return;
+			}
+			try {
+				ForwardedSocketSession session = new ForwardedSocketSession(ForwardedSocketAcceptor.this, handler,
+						result);
+				handler.sessionCreated(session);
+				sessions.put(session.getId(), session);
+				session.startReading();
+			} catch (Throwable t) {
+				logger.warn("Could not set up connection accepted on " + address, t);
+				try {
+					result.close();
+				} catch (IOException e) {
+					logger.debug("Exception caught while closing connection", e);
+				}
+			}
+			try {
+				socket.accept(address, this);
+			} catch (Throwable t) {
+				failed(t, address);
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, SocketAddress address) {
+			if (channels.containsKey(address) && !disposing.get()) {
+				logger.warn("Caught exception while accepting incoming connection", exc);
+			}
+		}
+	}
+
+}
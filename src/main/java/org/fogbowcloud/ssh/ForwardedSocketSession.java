@@ -0,0 +1,138 @@
+package org.fogbowcloud.ssh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.nio2.Nio2Service;
+import org.apache.sshd.common.io.nio2.Nio2Session;
+import org.apache.sshd.common.util.Readable;
+
+/**
+ * NIO2 session of a connection accepted on a forwarded port. Reads go to one
+ * buffer kept for the whole connection, which is safe because the forwarder
+ * copies what it needs before messageReceived returns, and they can be
+ * suspended while the channel can't take more data. Writes are the queued,
+ * asynchronous writes of {@link Nio2Session}.
+ */
+public class ForwardedSocketSession extends Nio2Session {
+
+	public static final int READ_BUFFER_SIZE = 32 * 1024;
+
+	private final IoHandler handler;
+	private final AsynchronousSocketChannel socket;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final Readable readable = new Readable() {
+		@Override
+		public int available() {
+			return readBuffer.remaining();
+		}
+
+		@Override
+		public void getRawBytes(byte[] data, int offset, int len) {
+			readBuffer.get(data, offset, len);
+		}
+	};
+	private final CompletionHandler<Integer, Object> readHandler = new CompletionHandler<Integer, Object>() {
+		@Override
+		public void completed(Integer result, Object attachment) {
+			try {
+				if (result < 0) {
+					log.debug("Socket has been disconnected, closing IoSession now");
+					close(true);
+					return;
+				}
+				readBuffer.flip();
+				handler.messageReceived(ForwardedSocketSession.this, readable);
+				if (!closeFuture.isClosed()) {
+					continueReading();
+				}
+			} catch (Throwable t) {
+				failed(t, attachment);
+			}
+		}
+
+		@Override
+		public void failed(Throwable exc, Object attachment) {
+			exceptionCaught(exc);
+		}
+	};
+
+	private boolean reading;
+	private boolean suspended;
+
+	public ForwardedSocketSession(Nio2Service service, IoHandler handler, AsynchronousSocketChannel socket)
+			throws IOException {
+		super(service, handler, socket);
+		this.handler = handler;
+		this.socket = socket;
+	}
+
+	@Override
+	public void startReading() {
+		synchronized (readBuffer) {
+			if (reading || suspended) {
+				return;
+			}
+			reading = true;
+		}
+		read();
+	}
+
+	/**
+	 * Stops reading after the read being handled, if any. Bytes the peer sends
+	 * meanwhile wait in the socket buffers, and then in the peer's.
+	 */
+	public void suspendRead() {
+		synchronized (readBuffer) {
+			suspended = true;
+		}
+	}
+
+	public void resumeRead() {
+		synchronized (readBuffer) {
+			suspended = false;
+		}
+		startReading();
+	}
+
+	public boolean isReadSuspended() {
+		synchronized (readBuffer) {
+			return suspended;
+		}
+	}
+
+	private void continueReading() {
+		synchronized (readBuffer) {
+			if (suspended) {
+				reading = false;
+				return;
+			}
+		}
+		read();
+	}
+
+	private void read() {
+		readBuffer.clear();
+		socket.read(readBuffer, null, readHandler);
+	}
+
+	private void exceptionCaught(Throwable exc) {
+		if (closeFuture.isClosed()) {
+			return;
+		}
+		if (isClosing() || !socket.isOpen()) {
+			close(true);
+			return;
+		}
+		try {
+			handler.exceptionCaught(this, exc);
+		} catch (Throwable t) {
+			log.info("Exception handler threw exception, closing the session", t);
+			close(true);
+		}
+	}
+
+}
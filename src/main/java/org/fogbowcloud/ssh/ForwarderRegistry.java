@@ -0,0 +1,51 @@
+package org.fogbowcloud.ssh;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the {@link ReverseTunnelForwarder} currently bound to each
+ * forwarded port. Forwarders register themselves when the port is bound and
+ * unregister when the forwarding is cancelled.
+ */
+public class ForwarderRegistry {
+
+	public interface Listener {
+		void forwarderBound(int port);
+
+		void forwarderUnbound(int port);
+	}
+
+	private final ConcurrentMap<Integer, ReverseTunnelForwarder> forwardersByPort = new ConcurrentHashMap<Integer, ReverseTunnelForwarder>();
+	private final Listener listener;
+
+	public ForwarderRegistry() {
+		this(null);
+	}
+
+	public ForwarderRegistry(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void bind(int port, ReverseTunnelForwarder forwarder) {
+		forwardersByPort.put(port, forwarder);
+		if (listener != null) {
+			listener.forwarderBound(port);
+		}
+	}
+
+	public void unbind(int port, ReverseTunnelForwarder forwarder) {
+		if (forwardersByPort.remove(port, forwarder) && listener != null) {
+			listener.forwarderUnbound(port);
+		}
+	}
+
+	public ReverseTunnelForwarder getForwarder(int port) {
+		return forwardersByPort.get(port);
+	}
+
+	public int size() {
+		return forwardersByPort.size();
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.fogbowcloud.ssh;
+
+import java.util.Map;
+
+import org.apache.sshd.common.Session;
+
+/**
+ * How the forwarded channels of an ssh server move data between the clients
+ * of the forwarded ports and the agent. Like {@link ChannelWindowSettings},
+ * the values are kept as properties of the ssh server.
+ */
+public class ForwardingSettings {
+
+	/** Property with the most bytes a channel buffers in each direction. */
+	public static final String MAX_BUFFERED_BYTES = "forwarding-max-buffered-bytes";
+	public static final int DEFAULT_MAX_BUFFERED_BYTES = 256 * 1024;
+	/** Property with the coalescing delay in milliseconds; absent means off. */
+	public static final String COALESCING_DELAY = "forwarding-coalescing-delay";
+
+	private final int maxBufferedBytes;
+	private final int coalescingDelay;
+
+	/**
+	 * @param maxBufferedBytes
+	 *            how many bytes a channel keeps for the agent before it
+	 *            suspends reads from the client, and how many bytes it lets
+	 *            wait to be written to the client before it stops adjusting
+	 *            the agent's window; 0 for the default.
+	 * @param coalescingDelay
+	 *            how long in milliseconds a channel that is sending data may
+	 *            hold small reads from the client to send them in one packet;
+	 *            0 sends each read at once.
+	 */
+	public ForwardingSettings(int maxBufferedBytes, int coalescingDelay) {
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.coalescingDelay = coalescingDelay;
+	}
+
+	public void apply(Map<String, String> properties) {
+		if (maxBufferedBytes > 0) {
+			properties.put(MAX_BUFFERED_BYTES, String.valueOf(maxBufferedBytes));
+		} else {
+			properties.remove(MAX_BUFFERED_BYTES);
+		}
+		if (coalescingDelay > 0) {
+			properties.put(COALESCING_DELAY, String.valueOf(coalescingDelay));
+		} else {
+			properties.remove(COALESCING_DELAY);
+		}
+	}
+
+	public int getMaxBufferedBytes() {
+		return maxBufferedBytes;
+	}
+
+	public int getCoalescingDelay() {
+		return coalescingDelay;
+	}
+
+	public static int getMaxBufferedBytes(Session session) {
+		return session.getIntProperty(MAX_BUFFERED_BYTES, DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	public static int getCoalescingDelay(Session session) {
+		return session.getIntProperty(COALESCING_DELAY, 0);
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.fogbowcloud.ssh;
+
+import java.io.UnsupportedEncodingException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sshd.common.KeyPairProvider;
+import org.apache.sshd.common.keyprovider.AbstractKeyPairProvider;
+import org.apache.sshd.common.util.Base64;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+/**
+ * Host key shared by every ssh server of the process. The key file is read
+ * (or generated) once, on first use, and kept in memory afterwards, so
+ * handshakes don't go through the lock of the underlying provider. The body
+ * and ETag of the /hostkey response are computed once as well.
+ * <p>
+ * The {@link #DSA} key is kept Java-serialized, as it always was. The other
+ * algorithms are stored as PEM by {@link PemHostKeyProvider}; ECDSA keys make
+ * the server side of a handshake much cheaper than DSA or RSA.
+ */
+public class HostKey extends AbstractKeyPairProvider {
+
+	public static final String DSA = "dsa";
+	public static final String RSA = "rsa";
+	public static final String ECDSA_256 = "ecdsa-256";
+	public static final String ECDSA_384 = "ecdsa-384";
+	public static final String ECDSA_521 = "ecdsa-521";
+
+	private static final int RSA_KEY_SIZE = 2048;
+
+	private final KeyPairProvider keyPairProvider;
+	private volatile List<KeyPair> keyPairs;
+	private String publicKey;
+	private String eTag;
+
+	public HostKey(String hostKeyPath) {
+		this(new SimpleGeneratorHostKeyProvider(hostKeyPath));
+	}
+
+	/**
+	 * @param algorithm
+	 *            one of {@link #DSA}, {@link #RSA}, {@link #ECDSA_256},
+	 *            {@link #ECDSA_384} or {@link #ECDSA_521}; null means
+	 *            {@link #DSA}. "ecdsa" is the same as {@link #ECDSA_256}.
+	 */
+	public HostKey(String hostKeyPath, String algorithm) {
+		this(createKeyPairProvider(hostKeyPath, algorithm));
+	}
+
+	public HostKey(KeyPairProvider keyPairProvider) {
+		this.keyPairProvider = keyPairProvider;
+	}
+
+	@Override
+	public Iterable<KeyPair> loadKeys() {
+		List<KeyPair> loadedKeyPairs = keyPairs;
+		if (loadedKeyPairs == null) {
+			synchronized (this) {
+				if (keyPairs == null) {
+					List<KeyPair> newKeyPairs = new ArrayList<KeyPair>();
+					for (KeyPair keyPair : keyPairProvider.loadKeys()) {
+						newKeyPairs.add(keyPair);
+					}
+					if (newKeyPairs.isEmpty()) {
+						// Don't keep the failure, the next call tries again
+						return newKeyPairs;
+					}
+					keyPairs = Collections.unmodifiableList(newKeyPairs);
+				}
+				loadedKeyPairs = keyPairs;
+			}
+		}
+		return loadedKeyPairs;
+	}
+
+	/**
+	 * @return the Base64 encoded public key, or null if the key could not be
+	 *         loaded.
+	 */
+	public synchronized String getPublicKey() {
+		if (publicKey == null) {
+			Iterator<KeyPair> loadedKeyPairs = loadKeys().iterator();
+			if (!loadedKeyPairs.hasNext()) {
+				return null;
+			}
+			try {
+				publicKey = new String(Base64.encodeBase64(loadedKeyPairs.next().getPublic().getEncoded()), "utf-8");
+				eTag = "\"" + toHex(MessageDigest.getInstance("SHA-1").digest(publicKey.getBytes("utf-8"))) + "\"";
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return publicKey;
+	}
+
+	public synchronized String getETag() {
+		getPublicKey();
+		return eTag;
+	}
+
+	private static KeyPairProvider createKeyPairProvider(String hostKeyPath, String algorithm) {
+		if (algorithm == null || algorithm.trim().isEmpty() || algorithm.trim().equalsIgnoreCase(DSA)) {
+			return new SimpleGeneratorHostKeyProvider(hostKeyPath);
+		}
+		String name = algorithm.trim().toLowerCase();
+		if (name.equals(RSA)) {
+			PemHostKeyProvider keyPairProvider = new PemHostKeyProvider(hostKeyPath, "RSA");
+			keyPairProvider.setKeySize(RSA_KEY_SIZE);
+			return keyPairProvider;
+		}
+		String curve = null;
+		if (name.equals("ecdsa") || name.equals(ECDSA_256)) {
+			curve = "secp256r1";
+		} else if (name.equals(ECDSA_384)) {
+			curve = "secp384r1";
+		} else if (name.equals(ECDSA_521)) {
+			curve = "secp521r1";
+		}
+		if (curve == null) {
+			throw new IllegalArgumentException("Unsupported host key algorithm [" + algorithm + "], use one of "
+					+ DSA + ", " + RSA + ", " + ECDSA_256 + ", " + ECDSA_384 + " or " + ECDSA_521 + ".");
+		}
+		PemHostKeyProvider keyPairProvider = new PemHostKeyProvider(hostKeyPath, "EC");
+		keyPairProvider.setKeySpec(new ECGenParameterSpec(curve));
+		return keyPairProvider;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.fogbowcloud.ssh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hashed timing wheel holding the tokens that have no active session. A token
+ * is scheduled when its session goes away and cancelled when an agent binds
+ * its port again, so each tick only looks at the bucket that is due instead of
+ * sweeping every token of the node. Timeouts are kept per tunnel server, so a
+ * server that lost a race for a token never touches the owner's timeout.
+ */
+public class IdleTokenTimer {
+
+	private static final Logger LOGGER = Logger.getLogger(IdleTokenTimer.class);
+
+	public static final long DEFAULT_TICK_DURATION = 1000L; // 1s in ms
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	public interface ExpirationHandler {
+		void onExpired(TunnelServer tunnelServer, String tokenId);
+	}
+
+	private static class Timeout {
+		private final TunnelServer tunnelServer;
+		private final String tokenId;
+		private final long deadlineTick;
+
+		private Timeout(TunnelServer tunnelServer, String tokenId, long deadlineTick) {
+			this.tunnelServer = tunnelServer;
+			this.tokenId = tokenId;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	private final long tickDuration;
+	private final List<Set<Timeout>> wheel;
+	private final Map<TunnelServer, Map<String, Timeout>> timeoutsByTunnelServer = new HashMap<TunnelServer, Map<String, Timeout>>();
+	private int size;
+	private final ExpirationHandler expirationHandler;
+	private final long startTime;
+	private long lastTick;
+
+	private ScheduledExecutorService executor;
+
+	public IdleTokenTimer(ExpirationHandler expirationHandler) {
+		this(DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL, expirationHandler, System.currentTimeMillis());
+	}
+
+	protected IdleTokenTimer(long tickDuration, int ticksPerWheel, ExpirationHandler expirationHandler,
+			long startTime) {
+		this.tickDuration = tickDuration;
+		this.expirationHandler = expirationHandler;
+		this.startTime = startTime;
+		this.lastTick = 0;
+		this.wheel = new ArrayList<Set<Timeout>>(ticksPerWheel);
+		for (int i = 0; i < ticksPerWheel; i++) {
+			wheel.add(new LinkedHashSet<Timeout>());
+		}
+	}
+
+	public void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newScheduledThreadPool(1);
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireTimeouts(System.currentTimeMillis());
+				} catch (Throwable e) {
+					LOGGER.error("Error while expiring idle tokens.", e);
+				}
+			}
+		}, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public void schedule(TunnelServer tunnelServer, String tokenId, long delay) {
+		schedule(tunnelServer, tokenId, delay, System.currentTimeMillis());
+	}
+
+	protected synchronized void schedule(TunnelServer tunnelServer, String tokenId, long delay, long now) {
+		cancel(tunnelServer, tokenId);
+		long deadlineTick = Math.max(lastTick + 1, (now + delay - startTime + tickDuration - 1) / tickDuration);
+		Timeout timeout = new Timeout(tunnelServer, tokenId, deadlineTick);
+		Map<String, Timeout> timeouts = timeoutsByTunnelServer.get(tunnelServer);
+		if (timeouts == null) {
+			timeouts = new HashMap<String, Timeout>();
+			timeoutsByTunnelServer.put(tunnelServer, timeouts);
+		}
+		timeouts.put(tokenId, timeout);
+		size++;
+		getBucket(deadlineTick).add(timeout);
+	}
+
+	/**
+	 * Cancels the timeout the given tunnel server scheduled for the token. A
+	 * timeout scheduled by another server for the same token id is kept.
+	 */
+	public synchronized boolean cancel(TunnelServer tunnelServer, String tokenId) {
+		Timeout timeout = removeTimeout(tunnelServer, tokenId);
+		if (timeout == null) {
+			return false;
+		}
+		getBucket(timeout.deadlineTick).remove(timeout);
+		return true;
+	}
+
+	public synchronized boolean isScheduled(TunnelServer tunnelServer, String tokenId) {
+		Map<String, Timeout> timeouts = timeoutsByTunnelServer.get(tunnelServer);
+		return timeouts != null && timeouts.containsKey(tokenId);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	protected void expireTimeouts(long now) {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		synchronized (this) {
+			long currentTick = (now - startTime) / tickDuration;
+			while (lastTick < currentTick) {
+				lastTick++;
+				Iterator<Timeout> bucket = getBucket(lastTick).iterator();
+				while (bucket.hasNext()) {
+					Timeout timeout = bucket.next();
+					if (timeout.deadlineTick <= lastTick) {
+						bucket.remove();
+						removeTimeout(timeout.tunnelServer, timeout.tokenId);
+						expired.add(timeout);
+					}
+				}
+			}
+		}
+		for (Timeout timeout : expired) {
+			LOGGER.debug("Token [" + timeout.tokenId + "] has been idle for too long.");
+			expirationHandler.onExpired(timeout.tunnelServer, timeout.tokenId);
+		}
+	}
+
+	private Timeout removeTimeout(TunnelServer tunnelServer, String tokenId) {
+		Map<String, Timeout> timeouts = timeoutsByTunnelServer.get(tunnelServer);
+		if (timeouts == null) {
+			return null;
+		}
+		Timeout timeout = timeouts.remove(tokenId);
+		if (timeout == null) {
+			return null;
+		}
+		size--;
+		if (timeouts.isEmpty()) {
+			timeoutsByTunnelServer.remove(tunnelServer);
+		}
+		return timeout;
+	}
+
+	private Set<Timeout> getBucket(long tick) {
+		return wheel.get((int) (tick % wheel.size()));
+	}
+
+}
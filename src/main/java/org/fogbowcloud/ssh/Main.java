@@ -8,6 +8,8 @@ import java.util.Properties;
 public class Main {
 
 	private static final String TRUE = "true";
+	private static final int DEFAULT_STANDBY_TUNNEL_SERVERS = 1;
+	private static final int DEFAULT_CHANNEL_WINDOW_MAX_SIZE = 16 * 1024 * 1024;
 
 	public static void main(String[] args) throws IOException {
 		
@@ -37,9 +39,26 @@ public class Main {
 		String externalPortRange = properties.getProperty("external_port_range");
 		String[] externalRangeSplit = externalPortRange.split(":");
 		String externalHostKeyPath = properties.getProperty("host_key_path");
+		String hostKeyAlgorithm = properties.getProperty("host_key_algorithm");
 		String idleTokenTimeoutStr = properties.getProperty("idle_token_timeout");
 		String portsPerShhServer = properties.getProperty("ports_per_ssh_server");
 		String tokenPortDataStoreUrl = properties.getProperty("token_port_data_store_url");
+		String placementStrategy = properties.getProperty("placement_strategy");
+		String negotiationProfile = properties.getProperty("negotiation_profile");
+		ChannelWindowSettings channelWindowSettings = new ChannelWindowSettings(
+				parseSize(properties.getProperty("channel_window_size"), 0),
+				parseSize(properties.getProperty("channel_packet_size"), 0),
+				TRUE.equals(properties.getProperty("channel_window_adaptive")) ? parseSize(
+						properties.getProperty("channel_window_max_size"), DEFAULT_CHANNEL_WINDOW_MAX_SIZE) : 0);
+		String channelCoalescingDelayStr = properties.getProperty("channel_coalescing_delay");
+		ForwardingSettings forwardingSettings = new ForwardingSettings(
+				parseSize(properties.getProperty("channel_buffer_size"), 0),
+				channelCoalescingDelayStr == null ? 0 : Integer.parseInt(channelCoalescingDelayStr.trim()));
+		boolean sharedSshServer = TRUE.equals(properties.getProperty("shared_ssh_server"));
+		int nioWorkers = NioWorkerPool.parseNioWorkers(properties.getProperty("nio_workers"));
+		String standbyTunnelServersStr = properties.getProperty("standby_tunnel_servers");
+		int standbyTunnelServers = standbyTunnelServersStr == null ? DEFAULT_STANDBY_TUNNEL_SERVERS
+				: Integer.parseInt(standbyTunnelServersStr.trim());
 		Long idleTokenTimeout = null;
 		if (idleTokenTimeoutStr != null) {
 			idleTokenTimeout = Long.parseLong(idleTokenTimeoutStr) * 1000;
@@ -55,7 +74,12 @@ public class Main {
 					Integer.parseInt(tunnelPortRangeSplit[0]), Integer.parseInt(tunnelPortRangeSplit[1]),
 					Integer.parseInt(externalRangeSplit[0]), Integer.parseInt(externalRangeSplit[1]), idleTokenTimeout,
 					externalHostKeyPath, Integer.parseInt(portsPerShhServer), checkSSHServersInterval,
-					tokenPortDataStoreUrl, cleanDataStore);
+					tokenPortDataStoreUrl, cleanDataStore, sharedSshServer, nioWorkers, hostKeyAlgorithm);
+			tunnelHttpServer.setPlacementStrategy(PlacementStrategies.create(placementStrategy));
+			tunnelHttpServer.setStandbyTunnelServersNumber(standbyTunnelServers);
+			tunnelHttpServer.setNegotiationProfile(negotiationProfile);
+			tunnelHttpServer.setChannelWindowSettings(channelWindowSettings);
+			tunnelHttpServer.setForwardingSettings(forwardingSettings);
 
 			tunnelHttpServer.start();
 
@@ -66,4 +90,24 @@ public class Main {
 
 	}
 
+	/**
+	 * Parses a size in bytes, with an optional k or m suffix.
+	 */
+	private static int parseSize(String size, int defaultSize) {
+		if (size == null || size.trim().isEmpty()) {
+			return defaultSize;
+		}
+		size = size.trim().toLowerCase();
+		int multiplier = 1;
+		if (size.endsWith("k")) {
+			multiplier = 1024;
+		} else if (size.endsWith("m")) {
+			multiplier = 1024 * 1024;
+		}
+		if (multiplier > 1) {
+			size = size.substring(0, size.length() - 1).trim();
+		}
+		return Integer.parseInt(size) * multiplier;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package org.fogbowcloud.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.AbstractFactoryManager;
+import org.apache.sshd.common.KeyExchange;
+import org.apache.sshd.common.Mac;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.server.kex.DHG14;
+
+/**
+ * Cipher, MAC and key exchange lists that can be chosen with the
+ * negotiation_profile property. The client's preference decides among the
+ * algorithms both sides have, so a profile works by offering only what it
+ * wants used, in the order it prefers.
+ */
+public class NegotiationProfiles {
+
+	/** The lists of SshServer.setUpDefaultServer(). */
+	public static final String DEFAULT = "default";
+	/**
+	 * Only AES-CTR ciphers and the SHA-1/SHA-256 MACs, which are the fastest
+	 * ones on JVMs with AES and SHA intrinsics. Slower algorithms like
+	 * hmac-sha2-512, CBC and 3DES are not offered.
+	 */
+	public static final String THROUGHPUT = "throughput";
+	/**
+	 * The default lists plus diffie-hellman-group14-sha1, for clients that
+	 * disabled group1 and have no group exchange or ECDH.
+	 */
+	public static final String COMPAT = "compat";
+
+	private static final String[] THROUGHPUT_CIPHERS = { "aes128-ctr", "aes256-ctr", "aes192-ctr" };
+	private static final String[] THROUGHPUT_MACS = { "hmac-sha2-256", "hmac-sha1" };
+	private static final String[] THROUGHPUT_KEY_EXCHANGES = { "ecdh-sha2-nistp256", "ecdh-sha2-nistp384",
+			"ecdh-sha2-nistp521", "diffie-hellman-group-exchange-sha256", "diffie-hellman-group-exchange-sha1",
+			"diffie-hellman-group1-sha1" };
+
+	private static SshServer defaults;
+
+	public static boolean isValid(String name) {
+		if (name == null || name.trim().isEmpty()) {
+			return true;
+		}
+		name = name.trim();
+		return DEFAULT.equals(name) || THROUGHPUT.equals(name) || COMPAT.equals(name);
+	}
+
+	/**
+	 * Sets the cipher, MAC and key exchange factories of sshServer, with
+	 * {@link CopyFreeCipher} for AES. Sessions already established keep the
+	 * algorithms they negotiated.
+	 *
+	 * @param name
+	 *            one of the names above; null or empty means default.
+	 */
+	public static void apply(String name, AbstractFactoryManager sshServer) {
+		if (!isValid(name)) {
+			throw new IllegalArgumentException("Unknown negotiation profile [" + name + "], use one of " + DEFAULT
+					+ ", " + THROUGHPUT + " or " + COMPAT + ".");
+		}
+		SshServer defaultServer = getDefaults();
+		name = name == null ? DEFAULT : name.trim();
+		if (THROUGHPUT.equals(name)) {
+			sshServer.setCipherFactories(CopyFreeCipher.replaceAesCiphers(select(defaultServer.getCipherFactories(),
+					THROUGHPUT_CIPHERS)));
+			sshServer.setMacFactories(select(defaultServer.getMacFactories(), THROUGHPUT_MACS));
+			sshServer.setKeyExchangeFactories(select(defaultServer.getKeyExchangeFactories(), THROUGHPUT_KEY_EXCHANGES));
+			return;
+		}
+		sshServer.setCipherFactories(CopyFreeCipher.replaceAesCiphers(defaultServer.getCipherFactories()));
+		sshServer.setMacFactories(new ArrayList<NamedFactory<Mac>>(defaultServer.getMacFactories()));
+		if (COMPAT.equals(name)) {
+			List<NamedFactory<KeyExchange>> keyExchanges = new ArrayList<NamedFactory<KeyExchange>>(
+					defaultServer.getKeyExchangeFactories());
+			keyExchanges.add(keyExchanges.size() - 1, new DHG14.Factory());
+			sshServer.setKeyExchangeFactories(keyExchanges);
+		} else {
+			sshServer.setKeyExchangeFactories(new ArrayList<NamedFactory<KeyExchange>>(
+					defaultServer.getKeyExchangeFactories()));
+		}
+	}
+
+	private static synchronized SshServer getDefaults() {
+		if (defaults == null) {
+			defaults = SshServer.setUpDefaultServer();
+		}
+		return defaults;
+	}
+
+	private static <T> List<NamedFactory<T>> select(List<NamedFactory<T>> available, String... names) {
+		List<NamedFactory<T>> selected = new ArrayList<NamedFactory<T>>();
+		for (String name : names) {
+			NamedFactory<T> factory = NamedFactory.Utils.get(available, name);
+			if (factory != null) {
+				selected.add(factory);
+			}
+		}
+		return selected;
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.fogbowcloud.ssh;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.AbstractFactoryManager;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.io.IoAcceptor;
+import org.apache.sshd.common.io.IoConnector;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.IoServiceFactory;
+import org.apache.sshd.common.io.IoServiceFactoryFactory;
+import org.apache.sshd.common.io.nio2.Nio2Acceptor;
+import org.apache.sshd.common.io.nio2.Nio2Connector;
+import org.apache.sshd.common.util.CloseableUtils;
+
+/**
+ * One NIO2 {@link AsynchronousChannelGroup} shared by the ssh servers of all
+ * the {@link TunnelServer}s of a node, so the number of I/O threads depends on
+ * the number of cores instead of the number of tunnel servers. The group runs
+ * its completion handlers on a fixed pool whose queue is exposed as a metric.
+ */
+public class NioWorkerPool {
+
+	private static final String CORES_SUFFIX = "x";
+
+	private final int nioWorkers;
+	private ThreadPoolExecutor executor;
+	private AsynchronousChannelGroup group;
+	private ScheduledExecutorService timer;
+
+	public NioWorkerPool(int nioWorkers) {
+		this.nioWorkers = Math.max(1, nioWorkers);
+	}
+
+	/**
+	 * @param nioWorkers
+	 *            a number of threads, or a multiple of the number of cores such
+	 *            as "2x"; null or empty means 2x.
+	 */
+	public static int parseNioWorkers(String nioWorkers) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (nioWorkers == null || nioWorkers.trim().isEmpty()) {
+			return 2 * cores;
+		}
+		nioWorkers = nioWorkers.trim();
+		if (nioWorkers.endsWith(CORES_SUFFIX)) {
+			String multiplier = nioWorkers.substring(0, nioWorkers.length() - CORES_SUFFIX.length()).trim();
+			return Math.max(1, (int) Math.round(Double.parseDouble(multiplier) * cores));
+		}
+		return Integer.parseInt(nioWorkers);
+	}
+
+	/**
+	 * Makes sshServer do its I/O on this pool and run its session timeout checks
+	 * on a timer shared with the other servers. Both are left running when the
+	 * server stops.
+	 */
+	public void configure(AbstractFactoryManager sshServer) {
+		sshServer.setIoServiceFactoryFactory(getIoServiceFactoryFactory());
+		sshServer.setScheduledExecutorService(getTimer(), false);
+	}
+
+	private IoServiceFactoryFactory getIoServiceFactoryFactory() {
+		return new IoServiceFactoryFactory() {
+			@Override
+			public IoServiceFactory create(FactoryManager manager) {
+				return new SharedIoServiceFactory(manager, getGroup());
+			}
+		};
+	}
+
+	public synchronized AsynchronousChannelGroup getGroup() {
+		if (group == null) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executor = new ThreadPoolExecutor(nioWorkers, nioWorkers, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							return new Thread(runnable, "nio-worker-" + threadNumber.incrementAndGet());
+						}
+					});
+			try {
+				group = AsynchronousChannelGroup.withThreadPool(executor);
+			} catch (IOException e) {
+				executor.shutdownNow();
+				executor = null;
+				throw new IllegalStateException("Couldn't create the NIO worker pool.", e);
+			}
+		}
+		return group;
+	}
+
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "ssh-timer");
+				}
+			});
+		}
+		return timer;
+	}
+
+	public synchronized void shutdown() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		if (group != null) {
+			group.shutdown();
+			group = null;
+			executor = null;
+		}
+	}
+
+	public int getNioWorkers() {
+		return nioWorkers;
+	}
+
+	public synchronized int getActiveWorkers() {
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	public synchronized int getQueueDepth() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	public synchronized long getCompletedTasks() {
+		return executor == null ? 0 : executor.getCompletedTaskCount();
+	}
+
+	/**
+	 * Creates the acceptor of the forwarded ports of an ssh server: a
+	 * {@link ForwardedSocketAcceptor} on the shared group when the server does
+	 * its I/O on a NioWorkerPool, or the server's default acceptor otherwise.
+	 */
+	public static IoAcceptor createForwardedSocketAcceptor(FactoryManager manager, IoHandler handler) {
+		IoServiceFactory ioServiceFactory = manager.getIoServiceFactory();
+		if (ioServiceFactory instanceof SharedIoServiceFactory) {
+			return new ForwardedSocketAcceptor(manager, handler, ((SharedIoServiceFactory) ioServiceFactory).group);
+		}
+		return ioServiceFactory.createAcceptor(handler);
+	}
+
+	private static class SharedIoServiceFactory extends CloseableUtils.AbstractCloseable implements IoServiceFactory {
+
+		private final FactoryManager manager;
+		private final AsynchronousChannelGroup group;
+
+		SharedIoServiceFactory(FactoryManager manager, AsynchronousChannelGroup group) {
+			this.manager = manager;
+			this.group = group;
+		}
+
+		@Override
+		public IoConnector createConnector(IoHandler handler) {
+			return new Nio2Connector(manager, handler, group);
+		}
+
+		@Override
+		public IoAcceptor createAcceptor(IoHandler handler) {
+			return new Nio2Acceptor(manager, handler, group);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.fogbowcloud.ssh;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import org.apache.sshd.common.util.Base64;
+import org.apache.sshd.server.keyprovider.AbstractGeneratorHostKeyProvider;
+
+/**
+ * Host key provider storing the key pair as PEM: a PKCS#8 "PRIVATE KEY"
+ * block followed by an X.509 "PUBLIC KEY" block, both readable by openssl
+ * and by the JDK without extra providers. An existing file is never
+ * overwritten, so a key in another format is kept on disk.
+ */
+public class PemHostKeyProvider extends AbstractGeneratorHostKeyProvider {
+
+	private static final String PRIVATE_KEY = "PRIVATE KEY";
+	private static final String PUBLIC_KEY = "PUBLIC KEY";
+	private static final int LINE_LENGTH = 64;
+
+	public PemHostKeyProvider(String path, String algorithm) {
+		super(path, algorithm);
+		setOverwriteAllowed(false);
+	}
+
+	@Override
+	protected KeyPair doReadKeyPair(InputStream is) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+		byte[] privateKey = null;
+		byte[] publicKey = null;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.equals("-----BEGIN " + PRIVATE_KEY + "-----")) {
+				privateKey = readBlock(reader, PRIVATE_KEY);
+			} else if (line.equals("-----BEGIN " + PUBLIC_KEY + "-----")) {
+				publicKey = readBlock(reader, PUBLIC_KEY);
+			}
+		}
+		if (privateKey == null || publicKey == null) {
+			throw new IllegalArgumentException("Host key file must have a " + PRIVATE_KEY + " and a " + PUBLIC_KEY
+					+ " block.");
+		}
+		KeyFactory keyFactory = KeyFactory.getInstance(getAlgorithm());
+		PrivateKey priv = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey));
+		PublicKey pub = keyFactory.generatePublic(new X509EncodedKeySpec(publicKey));
+		return new KeyPair(pub, priv);
+	}
+
+	@Override
+	protected void doWriteKeyPair(KeyPair kp, OutputStream os) throws Exception {
+		Writer writer = new OutputStreamWriter(os, "US-ASCII");
+		writeBlock(writer, PRIVATE_KEY, kp.getPrivate().getEncoded());
+		writeBlock(writer, PUBLIC_KEY, kp.getPublic().getEncoded());
+		writer.flush();
+	}
+
+	private static byte[] readBlock(BufferedReader reader, String type) throws Exception {
+		StringBuilder base64 = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.equals("-----END " + type + "-----")) {
+				return Base64.decodeBase64(base64.toString().getBytes("US-ASCII"));
+			}
+			base64.append(line.trim());
+		}
+		throw new IllegalArgumentException("Missing end of " + type + " block.");
+	}
+
+	private static void writeBlock(Writer writer, String type, byte[] encoded) throws Exception {
+		String base64 = new String(Base64.encodeBase64(encoded), "US-ASCII");
+		writer.write("-----BEGIN " + type + "-----\n");
+		for (int i = 0; i < base64.length(); i += LINE_LENGTH) {
+			writer.write(base64, i, Math.min(LINE_LENGTH, base64.length() - i));
+			writer.write("\n");
+		}
+		writer.write("-----END " + type + "-----\n");
+	}
+
+}
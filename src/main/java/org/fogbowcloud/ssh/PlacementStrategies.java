@@ -0,0 +1,138 @@
+package org.fogbowcloud.ssh;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link PlacementStrategy} implementations that can be chosen with the
+ * placement_strategy property.
+ */
+public class PlacementStrategies {
+
+	public static final String FIRST_FIT = "first_fit";
+	public static final String LEAST_TOKENS = "least_tokens";
+	public static final String LEAST_BYTES = "least_bytes";
+	public static final String SPREAD = "spread";
+
+	/**
+	 * @param name
+	 *            one of the names above or the name of a class implementing
+	 *            {@link PlacementStrategy}; null or empty means first fit.
+	 */
+	public static PlacementStrategy create(String name) throws Exception {
+		if (name == null || name.trim().isEmpty() || FIRST_FIT.equals(name.trim())) {
+			return new FirstFit();
+		}
+		name = name.trim();
+		if (LEAST_TOKENS.equals(name)) {
+			return new LeastTokens();
+		}
+		if (LEAST_BYTES.equals(name)) {
+			return new LeastBytes();
+		}
+		if (SPREAD.equals(name)) {
+			return new Spread();
+		}
+		return (PlacementStrategy) Class.forName(name).newInstance();
+	}
+
+	/**
+	 * Fills the oldest tunnel server first and only asks for a new one when all
+	 * of them are busy.
+	 */
+	public static class FirstFit implements PlacementStrategy {
+
+		@Override
+		public TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer) {
+			for (TunnelServer tunnelServer : tunnelServers) {
+				if (!tunnelServer.isServerBusy()) {
+					return tunnelServer;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Picks the tunnel server with the fewest tokens.
+	 */
+	public static class LeastTokens implements PlacementStrategy {
+
+		@Override
+		public TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer) {
+			TunnelServer selected = null;
+			int selectedTokens = Integer.MAX_VALUE;
+			for (TunnelServer tunnelServer : tunnelServers) {
+				int activeTokens = tunnelServer.getActiveTokensNumber();
+				if (!tunnelServer.isServerBusy() && activeTokens < selectedTokens) {
+					selected = tunnelServer;
+					selectedTokens = activeTokens;
+				}
+			}
+			return selected;
+		}
+	}
+
+	/**
+	 * Picks the tunnel server moving the fewest bytes per second, breaking ties
+	 * by number of tokens.
+	 */
+	public static class LeastBytes implements PlacementStrategy {
+
+		@Override
+		public TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer) {
+			TunnelServer selected = null;
+			long selectedBytes = Long.MAX_VALUE;
+			int selectedTokens = Integer.MAX_VALUE;
+			for (TunnelServer tunnelServer : tunnelServers) {
+				if (tunnelServer.isServerBusy()) {
+					continue;
+				}
+				long bytesPerSecond = tunnelServer.getTrafficMeter().getBytesPerSecond();
+				int activeTokens = tunnelServer.getActiveTokensNumber();
+				if (bytesPerSecond < selectedBytes
+						|| (bytesPerSecond == selectedBytes && activeTokens < selectedTokens)) {
+					selected = tunnelServer;
+					selectedBytes = bytesPerSecond;
+					selectedTokens = activeTokens;
+				}
+			}
+			return selected;
+		}
+	}
+
+	/**
+	 * Spreads tokens over as many tunnel servers as the ssh port range allows:
+	 * asks for a new tunnel server while every existing one already has tokens,
+	 * and goes round robin over the ones with free ports after that.
+	 */
+	public static class Spread implements PlacementStrategy {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer) {
+			// Servers may be removed while we look, so go over a snapshot
+			TunnelServer[] snapshot = tunnelServers.toArray(new TunnelServer[0]);
+			if (snapshot.length == 0) {
+				return null;
+			}
+			int first = (next.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+			TunnelServer selected = null;
+			for (int i = 0; i < snapshot.length; i++) {
+				TunnelServer tunnelServer = snapshot[(first + i) % snapshot.length];
+				if (tunnelServer.isServerBusy()) {
+					continue;
+				}
+				if (tunnelServer.getActiveTokensNumber() == 0) {
+					return tunnelServer;
+				}
+				if (selected == null) {
+					selected = tunnelServer;
+				}
+			}
+			return canCreateTunnelServer ? null : selected;
+		}
+	}
+
+}
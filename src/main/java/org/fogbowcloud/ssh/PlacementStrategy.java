@@ -0,0 +1,20 @@
+package org.fogbowcloud.ssh;
+
+import java.util.List;
+
+/**
+ * Chooses the {@link TunnelServer} that gets the port of a new token.
+ */
+public interface PlacementStrategy {
+
+	/**
+	 * @param tunnelServers
+	 *            all the tunnel servers of this node, busy ones included.
+	 * @param canCreateTunnelServer
+	 *            whether there is still room for another tunnel server.
+	 * @return a tunnel server with free ports, or null to ask for a new tunnel
+	 *         server to be created.
+	 */
+	TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer);
+
+}
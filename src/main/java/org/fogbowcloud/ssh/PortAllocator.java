@@ -0,0 +1,148 @@
+package org.fogbowcloud.ssh;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bitmap of the ports in [lowerPort, higherPort] handed out by a
+ * {@link TunnelServer}. A caller first claims one unit of the free counter and
+ * then sets a clear bit with compare-and-set, starting from the lowest word
+ * that may still have a free port. Ports are freed by clearing the bit before
+ * giving the unit back, so a claimed unit always has a clear bit to find.
+ */
+public class PortAllocator {
+
+	private static final int BITS_PER_WORD = 64;
+
+	private final int lowerPort;
+	private final int higherPort;
+	private final AtomicLongArray takenPorts;
+	private final AtomicInteger freePorts;
+	private final AtomicInteger freeWordHint = new AtomicInteger(0);
+
+	public PortAllocator(int lowerPort, int higherPort) {
+		this.lowerPort = lowerPort;
+		this.higherPort = higherPort;
+		this.takenPorts = new AtomicLongArray((getCapacity() + BITS_PER_WORD - 1) / BITS_PER_WORD);
+		this.freePorts = new AtomicInteger(getCapacity());
+	}
+
+	public Integer allocate() {
+		if (!claimFreePort()) {
+			return null;
+		}
+		int words = takenPorts.length();
+		while (true) {
+			int firstWord = freeWordHint.get();
+			for (int i = 0; i < words; i++) {
+				int wordIndex = (firstWord + i) % words;
+				int offset = claimBitInWord(wordIndex);
+				if (offset >= 0) {
+					if (i > 0) {
+						freeWordHint.compareAndSet(firstWord, wordIndex);
+					}
+					return lowerPort + offset;
+				}
+			}
+		}
+	}
+
+	public boolean reserve(int port) {
+		if (!isInRange(port)) {
+			return false;
+		}
+		if (!setBit(port - lowerPort)) {
+			return false;
+		}
+		freePorts.decrementAndGet();
+		return true;
+	}
+
+	public boolean free(int port) {
+		if (!isInRange(port)) {
+			return false;
+		}
+		int offset = port - lowerPort;
+		int wordIndex = offset / BITS_PER_WORD;
+		long mask = 1L << (offset % BITS_PER_WORD);
+		while (true) {
+			long word = takenPorts.get(wordIndex);
+			if ((word & mask) == 0) {
+				return false;
+			}
+			if (takenPorts.compareAndSet(wordIndex, word, word & ~mask)) {
+				break;
+			}
+		}
+		freePorts.incrementAndGet();
+		while (true) {
+			int hint = freeWordHint.get();
+			if (hint <= wordIndex || freeWordHint.compareAndSet(hint, wordIndex)) {
+				return true;
+			}
+		}
+	}
+
+	public boolean isTaken(int port) {
+		if (!isInRange(port)) {
+			return false;
+		}
+		int offset = port - lowerPort;
+		return (takenPorts.get(offset / BITS_PER_WORD) & (1L << (offset % BITS_PER_WORD))) != 0;
+	}
+
+	public int getFreePorts() {
+		return Math.max(0, freePorts.get());
+	}
+
+	public int getCapacity() {
+		return Math.max(0, higherPort - lowerPort + 1);
+	}
+
+	private boolean claimFreePort() {
+		while (true) {
+			int free = freePorts.get();
+			if (free <= 0) {
+				return false;
+			}
+			if (freePorts.compareAndSet(free, free - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private int claimBitInWord(int wordIndex) {
+		int wordBits = Math.min(BITS_PER_WORD, getCapacity() - wordIndex * BITS_PER_WORD);
+		long usableMask = wordBits == BITS_PER_WORD ? -1L : (1L << wordBits) - 1;
+		while (true) {
+			long word = takenPorts.get(wordIndex);
+			long clearBits = ~word & usableMask;
+			if (clearBits == 0) {
+				return -1;
+			}
+			long lowestClearBit = Long.lowestOneBit(clearBits);
+			if (takenPorts.compareAndSet(wordIndex, word, word | lowestClearBit)) {
+				return wordIndex * BITS_PER_WORD + Long.numberOfTrailingZeros(lowestClearBit);
+			}
+		}
+	}
+
+	private boolean setBit(int offset) {
+		int wordIndex = offset / BITS_PER_WORD;
+		long mask = 1L << (offset % BITS_PER_WORD);
+		while (true) {
+			long word = takenPorts.get(wordIndex);
+			if ((word & mask) != 0) {
+				return false;
+			}
+			if (takenPorts.compareAndSet(wordIndex, word, word | mask)) {
+				return true;
+			}
+		}
+	}
+
+	private boolean isInRange(int port) {
+		return port >= lowerPort && port <= higherPort;
+	}
+
+}
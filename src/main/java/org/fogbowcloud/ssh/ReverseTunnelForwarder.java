@@ -8,7 +8,6 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.sshd.ClientChannel;
 import org.apache.sshd.client.future.OpenFuture;
 import org.apache.sshd.common.Closeable;
 import org.apache.sshd.common.ForwardingFilter;
@@ -21,7 +20,6 @@ import org.apache.sshd.common.io.IoHandler;
 import org.apache.sshd.common.io.IoSession;
 import org.apache.sshd.common.io.nio2.Nio2Acceptor;
 import org.apache.sshd.common.session.ConnectionService;
-import org.apache.sshd.common.util.Buffer;
 import org.apache.sshd.common.util.CloseableUtils;
 import org.apache.sshd.common.util.Readable;
 
@@ -29,13 +27,18 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
 
 	private final ConnectionService service;
     private final Session session;
+    private final ForwarderRegistry forwarderRegistry;
+    private final TrafficMeter trafficMeter;
     private final Set<SshdSocketAddress> localForwards = new HashSet<SshdSocketAddress>();
     private final Map<InetSocketAddress, SshdSocketAddress> sessionToLocalForwards = new HashMap<InetSocketAddress, SshdSocketAddress>();
     protected IoAcceptor acceptor;
 
-    public ReverseTunnelForwarder(ConnectionService service) {
+    public ReverseTunnelForwarder(ConnectionService service, ForwarderRegistry forwarderRegistry,
+            TrafficMeter trafficMeter) {
 		this.service = service;
         this.session = service.getSession();
+        this.forwarderRegistry = forwarderRegistry;
+        this.trafficMeter = trafficMeter;
     }
     
     public Set<SshdSocketAddress> getLocalForwards() {
@@ -80,6 +83,7 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
         localForwards.add(bound);
         InetSocketAddress remoteSocketAddress = (InetSocketAddress) session.getIoSession().getRemoteAddress();
         sessionToLocalForwards.put(remoteSocketAddress, bound);
+        forwarderRegistry.bind(bound.getPort(), this);
         return bound;
     }
 
@@ -98,6 +102,7 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
         if (local == null) {
         	return;
         }
+        forwarderRegistry.unbind(local.getPort(), this);
     }
 
     public synchronized void close() {
@@ -132,7 +137,7 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
 				remoteAddress = localForward;
 			}
 		}
-        final ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(session, remoteAddress);
+        final ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(session, remoteAddress, trafficMeter);
         session.setAttribute(ReverseTunnelTcpipChannel.class, channel);
         this.service.registerChannel(channel);
         channel.open().addListener(new SshFutureListener<OpenFuture>() {
@@ -149,18 +154,15 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
     public void sessionClosed(IoSession session) throws Exception {
     	ReverseTunnelTcpipChannel channel = (ReverseTunnelTcpipChannel) session.getAttribute(ReverseTunnelTcpipChannel.class);
         if (channel != null) {
-            log.debug("IoSession {} closed, will now close the channel", session);
-            channel.close(false);
+            log.debug("IoSession {} closed, will close the channel once its data is sent", session);
+            channel.closeWhenFlushed();
         }
     }
 
     public void messageReceived(IoSession session, Readable message) throws Exception {
     	ReverseTunnelTcpipChannel channel = (ReverseTunnelTcpipChannel) session.getAttribute(ReverseTunnelTcpipChannel.class);
-        Buffer buffer = new Buffer();
-        buffer.putBuffer(message);
-        channel.waitFor(ClientChannel.OPENED | ClientChannel.CLOSED, Long.MAX_VALUE);
-        channel.getInvertedIn().write(buffer.array(), buffer.rpos(), buffer.available());
-        channel.getInvertedIn().flush();
+        trafficMeter.record(message.available());
+        channel.writeData(message);
     }
 
     public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
@@ -174,7 +176,7 @@ public class ReverseTunnelForwarder extends CloseableUtils.AbstractInnerCloseabl
 
     private SshdSocketAddress doBind(SshdSocketAddress address) throws IOException {
         if (acceptor == null) {
-            acceptor = session.getFactoryManager().getIoServiceFactory().createAcceptor(this);
+            acceptor = NioWorkerPool.createForwardedSocketAcceptor(session.getFactoryManager(), this);
         }
         Set<SocketAddress> before = acceptor.getBoundAddresses();
         try {
@@ -31,7 +31,15 @@ import org.apache.sshd.common.session.ConnectionService;
  */
 public class ReverseTunnelForwarderFactory implements TcpipForwarderFactory {
 
+	private final ForwarderRegistry forwarderRegistry;
+	private final TrafficMeter trafficMeter;
+
+	public ReverseTunnelForwarderFactory(ForwarderRegistry forwarderRegistry, TrafficMeter trafficMeter) {
+		this.forwarderRegistry = forwarderRegistry;
+		this.trafficMeter = trafficMeter;
+	}
+
 	public TcpipForwarder create(ConnectionService service) {
-		return new ReverseTunnelForwarder(service);
+		return new ReverseTunnelForwarder(service, forwarderRegistry, trafficMeter);
 	}
 }
@@ -1,7 +1,11 @@
 package org.fogbowcloud.ssh;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.sshd.client.channel.AbstractClientChannel;
 import org.apache.sshd.client.future.DefaultOpenFuture;
@@ -11,18 +15,61 @@ import org.apache.sshd.common.SshConstants;
 import org.apache.sshd.common.SshException;
 import org.apache.sshd.common.SshdSocketAddress;
 import org.apache.sshd.common.channel.ChannelOutputStream;
+import org.apache.sshd.common.future.SshFutureListener;
 import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.io.IoWriteFuture;
 import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.common.util.Readable;
 
 public class ReverseTunnelTcpipChannel extends AbstractClientChannel {
 
+    /**
+     * Room for the packet header, channel data header, padding and MAC around
+     * the payload of a data packet.
+     */
+    private static final int PACKET_OVERHEAD = 512;
+    /** Buffers of the data sent to the agent and to the clients. */
+    private static final BufferPool PACKET_BUFFER_POOL = new BufferPool(32 * 1024 + PACKET_OVERHEAD, 256);
+
     private final IoSession serverSession;
     private final SshdSocketAddress remote;
+    private final TrafficMeter trafficMeter;
+    private AdaptiveWindow adaptiveWindow;
+    private int maxBufferedBytes = ForwardingSettings.DEFAULT_MAX_BUFFERED_BYTES;
+    private final Queue<Buffer> pendingData = new ArrayDeque<Buffer>();
+    private int pendingDataSize;
+    private boolean closeRequested;
+    private int pendingWriteSize;
+    private int withheldWindow;
+    private int coalescingDelay;
+    private Buffer coalescedPacket;
+    private int coalescedSize;
+    private int coalescedSizePos;
+    private boolean coalescedFlushScheduled;
+    private volatile long lastPacketTime;
+    private final Runnable coalescedFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (pendingData) {
+                coalescedFlushScheduled = false;
+                if (closeFuture.isClosed() || isClosing()) {
+                    return;
+                }
+                try {
+                    writeCoalescedPacket();
+                } catch (IOException e) {
+                    log.warn("Could not send coalesced data on channel " + ReverseTunnelTcpipChannel.this, e);
+                    close(false);
+                }
+            }
+        }
+    };
 
-    public ReverseTunnelTcpipChannel(IoSession serverSession, SshdSocketAddress remote) {
+    public ReverseTunnelTcpipChannel(IoSession serverSession, SshdSocketAddress remote, TrafficMeter trafficMeter) {
         super("forwarded-tcpip");
         this.serverSession = serverSession;
         this.remote = remote;
+        this.trafficMeter = trafficMeter;
     }
 
 
@@ -56,12 +103,77 @@ public class ReverseTunnelTcpipChannel extends AbstractClientChannel {
         return openFuture;
     }
 
+    @Override
+    protected void configureWindow() {
+        super.configureWindow();
+        maxBufferedBytes = ForwardingSettings.getMaxBufferedBytes(session);
+        coalescingDelay = ForwardingSettings.getCoalescingDelay(session);
+        int adaptiveWindowMaxSize = session.getIntProperty(ChannelWindowSettings.ADAPTIVE_WINDOW_MAX_SIZE, 0);
+        if (adaptiveWindowMaxSize > localWindow.getMaxSize()) {
+            adaptiveWindow = new AdaptiveWindow(localWindow.getMaxSize(), adaptiveWindowMaxSize,
+                    System.currentTimeMillis());
+        }
+    }
+
+    protected AdaptiveWindow getAdaptiveWindow() {
+        return adaptiveWindow;
+    }
+
+    /**
+     * Channels whose reads can be suspended run on the {@link NioWorkerPool}
+     * shared by every tunnel server of the node, where waiting for remote
+     * window would hold a worker the other tunnels need, so they always
+     * stream asynchronously. Only sessions that can't suspend reads, which
+     * have I/O threads of their own, stream synchronously.
+     */
     @Override
     protected synchronized void doOpen() throws IOException {
-        if (streaming == Streaming.Async) {
-            throw new IllegalArgumentException("Asynchronous streaming isn't supported yet on this channel");
+        streaming = serverSession instanceof ForwardedSocketSession ? Streaming.Async : Streaming.Sync;
+        if (streaming == Streaming.Sync) {
+            invertedIn = out = new ChannelOutputStream(this, remoteWindow, log, SshConstants.SSH_MSG_CHANNEL_DATA);
         }
-        invertedIn = out = new ChannelOutputStream(this, remoteWindow, log, SshConstants.SSH_MSG_CHANNEL_DATA);
+    }
+
+    @Override
+    public void handleOpenSuccess(int recipient, int rwsize, int packetSize, Buffer buffer) {
+        super.handleOpenSuccess(recipient, rwsize, packetSize, buffer);
+        flushPendingData();
+    }
+
+    @Override
+    public void handleWindowAdjust(Buffer buffer) throws IOException {
+        super.handleWindowAdjust(buffer);
+        flushPendingData();
+    }
+
+    /**
+     * Closes the channel once the bytes read from the client have been sent
+     * to the agent. Bytes still queued wait for the open confirmation or for
+     * window adjusts as usual, and the flush that sends the last of them
+     * closes the channel, so a client that writes and disconnects before the
+     * agent takes its data loses nothing.
+     */
+    public void closeWhenFlushed() {
+        boolean flushed;
+        synchronized (pendingData) {
+            closeRequested = true;
+            flushed = opened && pendingData.isEmpty();
+        }
+        if (flushed) {
+            close(false);
+        }
+    }
+
+    @Override
+    protected void preClose() {
+        synchronized (pendingData) {
+            try {
+                writeCoalescedPacket();
+            } catch (IOException e) {
+                log.debug("Could not send coalesced data on closing channel {}", this);
+            }
+        }
+        super.preClose();
     }
 
     @Override
@@ -69,12 +181,273 @@ public class ReverseTunnelTcpipChannel extends AbstractClientChannel {
         return builder().sequential(serverSession, super.getInnerCloseable()).build();
     }
 
-    protected synchronized void doWriteData(byte[] data, int off, int len) throws IOException {
-        // Make sure we copy the data as the incoming buffer may be reused
-        Buffer buf = new Buffer(data, off, len);
-        buf = new Buffer(buf.getCompactData());
-        localWindow.consumeAndCheck(len);
-        serverSession.write(buf);
+    /**
+     * Sends the bytes of message to the agent as channel data packets. Each
+     * chunk is copied once, from the socket read buffer into a pooled packet
+     * buffer that goes back to the pool when the packet has been written.
+     * <p>
+     * Until the agent confirms the channel, and then until what arrived before
+     * is sent, the bytes are copied to the pending data queue instead, so the
+     * I/O thread never waits for the agent to open the channel. With
+     * asynchronous streaming what doesn't fit in the window is queued as
+     * well, to be sent as the agent adjusts the window; only synchronous
+     * streaming, see {@link #doOpen()}, waits here for remote window. Reads
+     * from the client are suspended while the queue holds the maximum
+     * buffered bytes, and resumed once it is down to half of that.
+     * <p>
+     * With a coalescing delay, small reads that arrive while the channel is
+     * sending are gathered in one packet; see {@link #coalesce(Readable)}.
+     */
+    public void writeData(Readable message) throws IOException {
+        synchronized (pendingData) {
+            if (opened && pendingData.isEmpty() && !coalesce(message)) {
+                writeWithinWindow(message);
+            }
+            if (message.available() == 0) {
+                return;
+            }
+            if (streaming == Streaming.Async || !opened || !pendingData.isEmpty()) {
+                queuePendingData(message);
+                return;
+            }
+        }
+        int len = message.available();
+        while (len > 0) {
+            int chunk;
+            try {
+                chunk = Math.min(Math.min(remoteWindow.waitForSpace(), remoteWindow.getPacketSize()), len);
+                remoteWindow.waitAndConsume(chunk);
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException().initCause(e);
+            }
+            writeDataPacket(message, chunk);
+            len -= chunk;
+        }
+    }
+
+    private void queuePendingData(Readable message) {
+        int len = message.available();
+        if (closeFuture.isClosed() || isClosing()) {
+            return;
+        }
+        if (serverSession instanceof ForwardedSocketSession) {
+            if (pendingDataSize + len >= maxBufferedBytes) {
+                ((ForwardedSocketSession) serverSession).suspendRead();
+            }
+        } else if (pendingDataSize + len > maxBufferedBytes) {
+            log.warn("More than {} bytes received before channel {} was opened, closing {}", maxBufferedBytes,
+                    this, serverSession);
+            pendingData.clear();
+            pendingDataSize = 0;
+            serverSession.close(false);
+            return;
+        }
+        byte[] data = new byte[len];
+        message.getRawBytes(data, 0, len);
+        pendingData.add(new Buffer(data));
+        pendingDataSize += len;
+    }
+
+    /**
+     * Sends as much of the pending data as the remote window takes now,
+     * without waiting for more window. The rest goes when the agent adjusts
+     * the window. Closes the channel if the client is gone and the queue is
+     * empty.
+     */
+    private void flushPendingData() {
+        boolean flushed;
+        synchronized (pendingData) {
+            if (!opened || closeFuture.isClosed() || isClosing()) {
+                return;
+            }
+            try {
+                while (!pendingData.isEmpty()) {
+                    Buffer data = pendingData.peek();
+                    int len = data.available();
+                    writeWithinWindow(data);
+                    pendingDataSize -= len - data.available();
+                    if (data.available() > 0) {
+                        break;
+                    }
+                    pendingData.poll();
+                }
+            } catch (IOException e) {
+                log.warn("Could not send pending data on channel " + this, e);
+                pendingData.clear();
+                pendingDataSize = 0;
+                close(false);
+                return;
+            }
+            if (serverSession instanceof ForwardedSocketSession && !closeRequested
+                    && pendingDataSize <= maxBufferedBytes / 2) {
+                ((ForwardedSocketSession) serverSession).resumeRead();
+            }
+            flushed = closeRequested && pendingData.isEmpty();
+        }
+        if (flushed) {
+            close(false);
+        }
+    }
+
+    /**
+     * Adds message to the coalesced packet when a coalescing delay is set,
+     * the channel sent a packet less than the delay ago or already holds
+     * coalesced data, and message is smaller than half a packet and fits in
+     * the packet and the remote window. The packet is sent when it is full,
+     * when data that isn't coalesced has to go after it, or when the delay
+     * since its first bytes is over, so an idle channel, like an interactive
+     * session between keystrokes, sends each read at once and a busy one
+     * sends fewer, fuller packets.
+     *
+     * @return whether message was coalesced.
+     */
+    private boolean coalesce(Readable message) throws IOException {
+        int len = message.available();
+        if (coalescingDelay <= 0 || len == 0 || len >= remoteWindow.getPacketSize() / 2
+                || coalescedSize + len > remoteWindow.getPacketSize() || len > remoteWindow.getSize()) {
+            return false;
+        }
+        if (coalescedPacket == null) {
+            if (System.nanoTime() - lastPacketTime >= TimeUnit.MILLISECONDS.toNanos(coalescingDelay)) {
+                return false;
+            }
+            coalescedPacket = new Buffer(PACKET_BUFFER_POOL.acquire(remoteWindow.getPacketSize() + PACKET_OVERHEAD),
+                    false);
+            coalescedPacket.rpos(5);
+            coalescedPacket.wpos(5);
+            coalescedPacket.putByte(SshConstants.SSH_MSG_CHANNEL_DATA);
+            coalescedPacket.putInt(recipient);
+            coalescedSizePos = coalescedPacket.wpos();
+            coalescedPacket.putInt(0);
+            if (!coalescedFlushScheduled) {
+                coalescedFlushScheduled = true;
+                session.getFactoryManager().getScheduledExecutorService()
+                        .schedule(coalescedFlush, coalescingDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        remoteWindow.consume(len);
+        message.getRawBytes(coalescedPacket.array(), coalescedPacket.wpos(), len);
+        coalescedPacket.wpos(coalescedPacket.wpos() + len);
+        coalescedSize += len;
+        if (coalescedSize == remoteWindow.getPacketSize()) {
+            writeCoalescedPacket();
+        }
+        return true;
+    }
+
+    private void writeCoalescedPacket() throws IOException {
+        if (coalescedPacket == null) {
+            return;
+        }
+        Buffer buffer = coalescedPacket;
+        int wpos = buffer.wpos();
+        buffer.wpos(coalescedSizePos);
+        buffer.putInt(coalescedSize);
+        buffer.wpos(wpos);
+        coalescedPacket = null;
+        coalescedSize = 0;
+        writePooledPacket(buffer);
+    }
+
+    private void writeWithinWindow(Readable message) throws IOException {
+        writeCoalescedPacket();
+        while (message.available() > 0) {
+            int chunk = Math.min(Math.min(remoteWindow.getSize(), remoteWindow.getPacketSize()), message.available());
+            if (chunk <= 0) {
+                return;
+            }
+            remoteWindow.consume(chunk);
+            writeDataPacket(message, chunk);
+        }
+    }
+
+    private void writeDataPacket(Readable message, int chunk) throws IOException {
+        final Buffer buffer = new Buffer(PACKET_BUFFER_POOL.acquire(chunk + PACKET_OVERHEAD), false);
+        buffer.rpos(5);
+        buffer.wpos(5);
+        buffer.putByte(SshConstants.SSH_MSG_CHANNEL_DATA);
+        buffer.putInt(recipient);
+        buffer.putInt(chunk);
+        message.getRawBytes(buffer.array(), buffer.wpos(), chunk);
+        buffer.wpos(buffer.wpos() + chunk);
+        writePooledPacket(buffer);
+    }
+
+    private void writePooledPacket(final Buffer buffer) throws IOException {
+        lastPacketTime = System.nanoTime();
+        session.writePacket(buffer).addListener(new SshFutureListener<IoWriteFuture>() {
+            @Override
+            public void operationComplete(IoWriteFuture future) {
+                PACKET_BUFFER_POOL.release(buffer.array());
+            }
+        });
     }
-	
+
+    /**
+     * Writes data from the agent to the client. The data is copied once, from
+     * the session's decode buffer, which is reused for the next packet, into
+     * a pooled buffer. The channel owns that buffer until the write to the
+     * client completes, successfully or not, and then returns it to the pool.
+     * <p>
+     * While more than the maximum buffered bytes wait to be written, the
+     * local window is not refilled, so a slow client holds back the agent
+     * instead of piling up writes in memory; the refill is sent once the
+     * writes drain. The agent can still send what is left of the window, so
+     * a channel buffers at most the maximum plus one window for its client.
+     */
+    protected synchronized void doWriteData(byte[] data, int off, final int len) throws IOException {
+        final byte[] array = PACKET_BUFFER_POOL.acquire(len);
+        System.arraycopy(data, off, array, 0, len);
+        localWindow.consume(len);
+        pendingWriteSize += len;
+        if (pendingWriteSize <= maxBufferedBytes) {
+            refillLocalWindow(len);
+        } else {
+            withheldWindow += len;
+        }
+        serverSession.write(new Buffer(array, 0, len)).addListener(new SshFutureListener<IoWriteFuture>() {
+            @Override
+            public void operationComplete(IoWriteFuture future) {
+                PACKET_BUFFER_POOL.release(array);
+                try {
+                    writeCompleted(len, future.isWritten());
+                } catch (IOException e) {
+                    log.warn("Could not adjust the window of channel " + ReverseTunnelTcpipChannel.this, e);
+                    close(false);
+                }
+            }
+        });
+        trafficMeter.record(len);
+    }
+
+    private synchronized void writeCompleted(int len, boolean written) throws IOException {
+        pendingWriteSize -= len;
+        if (!written || withheldWindow == 0 || pendingWriteSize > maxBufferedBytes) {
+            return;
+        }
+        int consumed = withheldWindow;
+        withheldWindow = 0;
+        refillLocalWindow(consumed);
+    }
+
+    protected synchronized int getPendingWriteSize() {
+        return pendingWriteSize;
+    }
+
+    protected static BufferPool getPacketBufferPool() {
+        return PACKET_BUFFER_POOL;
+    }
+
+    private synchronized void refillLocalWindow(int len) throws IOException {
+        if (adaptiveWindow == null) {
+            localWindow.check(localWindow.getMaxSize());
+            return;
+        }
+        int adjust = adaptiveWindow.consume(len, localWindow.getSize(), System.currentTimeMillis());
+        if (adjust > 0) {
+            localWindow.expand(adjust);
+            sendWindowAdjust(adjust);
+        }
+    }
+
 }
@@ -0,0 +1,196 @@
+package org.fogbowcloud.ssh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.ForwardingFilter;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.SshdSocketAddress;
+import org.apache.sshd.common.TcpipForwarder;
+import org.apache.sshd.common.TcpipForwarderFactory;
+import org.apache.sshd.common.session.AbstractSession;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.server.UserAuth;
+import org.apache.sshd.server.auth.UserAuthNone;
+import org.apache.sshd.server.session.ServerSession;
+
+/**
+ * One {@link SshServer} serving the tokens of all the {@link TunnelServer}s of
+ * a node. Each tunnel server keeps its ssh port and port range as bookkeeping,
+ * but its ssh port is just another address bound on the acceptor of this
+ * server, so all the tunnels share one key provider, one acceptor and one pool
+ * of NIO workers. Tokens are resolved to their tunnel server through the
+ * {@link TokenDirectory}.
+ */
+public class SharedSshServer extends SshServer {
+
+	private static final Logger LOGGER = Logger.getLogger(SharedSshServer.class);
+
+	private final String sshTunnelHost;
+	private final TokenDirectory tokenDirectory;
+	private boolean started;
+
+	public SharedSshServer(String sshTunnelHost, HostKey hostKey, TokenDirectory tokenDirectory) {
+		this.sshTunnelHost = sshTunnelHost == null ? "0.0.0.0" : sshTunnelHost;
+		this.tokenDirectory = tokenDirectory;
+
+		SshServer defaults = SshServer.setUpDefaultServer();
+		NegotiationProfiles.apply(null, this);
+		setCompressionFactories(defaults.getCompressionFactories());
+		setSignatureFactories(defaults.getSignatureFactories());
+		setRandomFactory(defaults.getRandomFactory());
+		setChannelFactories(defaults.getChannelFactories());
+		setGlobalRequestHandlers(defaults.getGlobalRequestHandlers());
+		setFileSystemFactory(defaults.getFileSystemFactory());
+
+		hostKey.loadKeys();
+		setKeyPairProvider(hostKey);
+		setCommandFactory(TunnelServer.createUnknownCommandFactory());
+		setUserAuthFactories(createUserAuthFactories());
+		setTcpipForwardingFilter(createForwardingFilter());
+		setTcpipForwarderFactory(createForwarderFactory());
+		setSessionFactory(new ReverseTunnelSessionFactory());
+		setHost(this.sshTunnelHost);
+	}
+
+	/**
+	 * Starts accepting connections on the ssh port of tunnelServer, starting
+	 * this server on the first call.
+	 */
+	public synchronized void bind(TunnelServer tunnelServer) throws IOException {
+		if (!started) {
+			setPort(tunnelServer.getSshTunnelPort());
+			start();
+			started = true;
+		} else {
+			acceptor.bind(toAddress(tunnelServer));
+		}
+		LOGGER.debug("Shared ssh server bound to port [" + tunnelServer.getSshTunnelPort() + "].");
+	}
+
+	/**
+	 * Stops accepting connections on the ssh port of tunnelServer and closes the
+	 * sessions of its tokens.
+	 */
+	public synchronized void unbind(TunnelServer tunnelServer) {
+		if (!started) {
+			return;
+		}
+		acceptor.unbind(toAddress(tunnelServer));
+		for (AbstractSession session : getActiveSessions()) {
+			String tokenId = session.getAttribute(TunnelServer.TOKEN);
+			if (tokenId != null && tunnelServer.getPort(tokenId) != null) {
+				session.close(true);
+			}
+		}
+		LOGGER.debug("Shared ssh server unbound from port [" + tunnelServer.getSshTunnelPort() + "].");
+	}
+
+	public synchronized int getBoundPortsNumber() {
+		return started ? acceptor.getBoundAddresses().size() : 0;
+	}
+
+	@Override
+	public synchronized void stop(boolean immediately) throws InterruptedException {
+		if (!started) {
+			return;
+		}
+		super.stop(immediately);
+		started = false;
+	}
+
+	private SocketAddress toAddress(TunnelServer tunnelServer) {
+		return new InetSocketAddress(sshTunnelHost, tunnelServer.getSshTunnelPort());
+	}
+
+	private List<NamedFactory<UserAuth>> createUserAuthFactories() {
+		List<NamedFactory<UserAuth>> userAuthenticators = new LinkedList<NamedFactory<UserAuth>>();
+		userAuthenticators.add(new NamedFactory<UserAuth>() {
+			@Override
+			public UserAuth create() {
+				return new UserAuthNone() {
+					@Override
+					public Boolean auth(ServerSession session, String username, String service, Buffer buffer)
+							throws Exception {
+						TunnelServer tunnelServer = tokenDirectory.getTunnelServer(username);
+						if (tunnelServer == null) {
+							session.close(true);
+							return false;
+						}
+						return tunnelServer.authenticate(session, username);
+					}
+				};
+			}
+
+			@Override
+			public String getName() {
+				return "none";
+			}
+		});
+		return userAuthenticators;
+	}
+
+	private ForwardingFilter createForwardingFilter() {
+		return new ForwardingFilter() {
+			@Override
+			public boolean canListen(SshdSocketAddress address, Session session) {
+				TunnelServer tunnelServer = getTunnelServer(session);
+				if (tunnelServer == null) {
+					session.close(true);
+					return false;
+				}
+				return tunnelServer.canListen(address, session);
+			}
+
+			@Override
+			public boolean canForwardX11(Session session) {
+				return false;
+			}
+
+			@Override
+			public boolean canForwardAgent(Session session) {
+				return true;
+			}
+
+			@Override
+			public boolean canConnect(SshdSocketAddress address, Session session) {
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * The forwarder of a session is created once its user is authenticated, so
+	 * it can be tied to the registry of the tunnel server owning the token.
+	 */
+	private TcpipForwarderFactory createForwarderFactory() {
+		return new TcpipForwarderFactory() {
+			@Override
+			public TcpipForwarder create(ConnectionService service) {
+				TunnelServer tunnelServer = getTunnelServer(service.getSession());
+				if (tunnelServer == null) {
+					// The forwarding filter rejects every request of this session
+					return new ReverseTunnelForwarder(service, new ForwarderRegistry(), new TrafficMeter());
+				}
+				return new ReverseTunnelForwarder(service, tunnelServer.getForwarderRegistry(),
+						tunnelServer.getTrafficMeter());
+			}
+		};
+	}
+
+	private TunnelServer getTunnelServer(Session session) {
+		String tokenId = session.getAttribute(TunnelServer.TOKEN);
+		if (tokenId == null) {
+			return null;
+		}
+		return tokenDirectory.getTunnelServer(tokenId);
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.fogbowcloud.ssh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.fogbowcloud.ssh.model.Token;
+
+/**
+ * Node-wide index of every token handed out by this tunnel node, pointing to
+ * the {@link TunnelServer} that owns it. Token ids are also kept sorted so the
+ * sub-tokens of a base token ({@code id-http}, {@code id-ftp}, ...) can be
+ * found with a range query.
+ */
+public class TokenDirectory {
+
+	public static final String SUB_TOKEN_SEPARATOR = "-";
+	public static final String BASE_TOKEN_KEY = "ssh";
+
+	private final ConcurrentMap<String, TunnelServer> tunnelServersByTokenId = new ConcurrentHashMap<String, TunnelServer>();
+	private final ConcurrentNavigableMap<String, TunnelServer> sortedTunnelServersByTokenId = new ConcurrentSkipListMap<String, TunnelServer>();
+
+	public void register(Token token, TunnelServer tunnelServer) {
+		if (token == null || tunnelServer == null) {
+			return;
+		}
+		tunnelServersByTokenId.put(token.getTokenId(), tunnelServer);
+		sortedTunnelServersByTokenId.put(token.getTokenId(), tunnelServer);
+	}
+
+	/**
+	 * @return the tunnel server that already owns a token with the same id, or
+	 *         null if the given one was registered.
+	 */
+	public TunnelServer registerIfAbsent(Token token, TunnelServer tunnelServer) {
+		TunnelServer owner = tunnelServersByTokenId.putIfAbsent(token.getTokenId(), tunnelServer);
+		if (owner == null) {
+			sortedTunnelServersByTokenId.put(token.getTokenId(), tunnelServer);
+		}
+		return owner;
+	}
+
+	public void registerAll(TunnelServer tunnelServer) {
+		for (Token token : tunnelServer.getTokens()) {
+			register(token, tunnelServer);
+		}
+	}
+
+	public void unregister(Token token, TunnelServer tunnelServer) {
+		if (token == null) {
+			return;
+		}
+		tunnelServersByTokenId.remove(token.getTokenId(), tunnelServer);
+		sortedTunnelServersByTokenId.remove(token.getTokenId(), tunnelServer);
+	}
+
+	public void unregisterAll(List<Token> tokens, TunnelServer tunnelServer) {
+		for (Token token : tokens) {
+			unregister(token, tunnelServer);
+		}
+	}
+
+	public TunnelServer getTunnelServer(String tokenId) {
+		if (tokenId == null) {
+			return null;
+		}
+		return tunnelServersByTokenId.get(tokenId);
+	}
+
+	public Token getToken(String tokenId) {
+		TunnelServer tunnelServer = getTunnelServer(tokenId);
+		if (tunnelServer == null) {
+			return null;
+		}
+		return tunnelServer.getToken(tokenId);
+	}
+
+	/**
+	 * @return the port of the base token under {@link #BASE_TOKEN_KEY} plus the
+	 *         port of every {@code tokenId-suffix} token under its suffix.
+	 */
+	public Map<String, Integer> getPortsByPrefix(String tokenId) {
+		Map<String, Integer> portsByPrefix = new HashMap<String, Integer>();
+		if (tokenId == null) {
+			return portsByPrefix;
+		}
+		Token baseToken = getToken(tokenId);
+		if (baseToken != null) {
+			portsByPrefix.put(BASE_TOKEN_KEY, baseToken.getPort());
+		}
+		String tokenPrefix = tokenId + SUB_TOKEN_SEPARATOR;
+		for (Map.Entry<String, TunnelServer> subToken : getSubTokens(tokenId).entrySet()) {
+			Token token = subToken.getValue().getToken(subToken.getKey());
+			if (token != null) {
+				portsByPrefix.put(subToken.getKey().substring(tokenPrefix.length()), token.getPort());
+			}
+		}
+		return portsByPrefix;
+	}
+
+	/**
+	 * @return the id of the base token, if it exists, followed by the ids of all
+	 *         its {@code tokenId-suffix} sub-tokens.
+	 */
+	public List<String> getTokenIdsByPrefix(String tokenId) {
+		List<String> tokenIds = new ArrayList<String>();
+		if (tokenId == null) {
+			return tokenIds;
+		}
+		if (tunnelServersByTokenId.containsKey(tokenId)) {
+			tokenIds.add(tokenId);
+		}
+		tokenIds.addAll(getSubTokens(tokenId).keySet());
+		return tokenIds;
+	}
+
+	private ConcurrentNavigableMap<String, TunnelServer> getSubTokens(String tokenId) {
+		String tokenPrefix = tokenId + SUB_TOKEN_SEPARATOR;
+		return sortedTunnelServersByTokenId.subMap(tokenPrefix, true, tokenPrefix + Character.MAX_VALUE, false);
+	}
+
+	public void setTunnelServers(List<TunnelServer> tunnelServers) {
+		tunnelServersByTokenId.clear();
+		sortedTunnelServersByTokenId.clear();
+		if (tunnelServers == null) {
+			return;
+		}
+		for (TunnelServer tunnelServer : tunnelServers) {
+			registerAll(tunnelServer);
+		}
+	}
+
+	public int size() {
+		return tunnelServersByTokenId.size();
+	}
+
+}
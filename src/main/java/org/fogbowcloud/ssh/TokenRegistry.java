@@ -0,0 +1,159 @@
+package org.fogbowcloud.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.fogbowcloud.ssh.model.Token;
+
+/**
+ * Tokens owned by a {@link TunnelServer}, kept as a primitive table with one
+ * slot per port of the server range: the slot holds the token id and the time
+ * the token became idle. Token ids map back to their port through a single
+ * concurrent map, so no {@link Token} object is kept per token; the ones
+ * returned by this class are views built on demand.
+ */
+public class TokenRegistry {
+
+	private final int lowerPort;
+	private final int higherPort;
+	private final int sshServerPort;
+	private final AtomicReferenceArray<String> tokenIdsBySlot;
+	private final AtomicLongArray idleSinceBySlot;
+	private final ConcurrentMap<String, Integer> portsByTokenId = new ConcurrentHashMap<String, Integer>();
+
+	public TokenRegistry(int lowerPort, int higherPort, int sshServerPort) {
+		this.lowerPort = lowerPort;
+		this.higherPort = higherPort;
+		this.sshServerPort = sshServerPort;
+		int slots = Math.max(0, higherPort - lowerPort + 1);
+		this.tokenIdsBySlot = new AtomicReferenceArray<String>(slots);
+		this.idleSinceBySlot = new AtomicLongArray(slots);
+	}
+
+	public Token getByTokenId(String tokenId) {
+		if (tokenId == null) {
+			return null;
+		}
+		Integer port = portsByTokenId.get(tokenId);
+		if (port == null) {
+			return null;
+		}
+		return toToken(tokenId, port);
+	}
+
+	public Token getByPort(int port) {
+		if (!isInRange(port)) {
+			return null;
+		}
+		String tokenId = tokenIdsBySlot.get(port - lowerPort);
+		if (tokenId == null) {
+			return null;
+		}
+		return toToken(tokenId, port);
+	}
+
+	public Integer getPort(String tokenId) {
+		if (tokenId == null) {
+			return null;
+		}
+		return portsByTokenId.get(tokenId);
+	}
+
+	public boolean containsTokenId(String tokenId) {
+		return getPort(tokenId) != null;
+	}
+
+	/**
+	 * Assigns a port, already taken from the server's {@link PortAllocator}, to
+	 * tokenId.
+	 *
+	 * @return the port tokenId already had, or null if the given port was
+	 *         assigned to it.
+	 */
+	public Integer putIfAbsent(String tokenId, int port, long idleSince) {
+		if (!isInRange(port)) {
+			throw new IllegalArgumentException("Port [" + port + "] is out of range [" + lowerPort + ":"
+					+ higherPort + "].");
+		}
+		Integer existingPort = portsByTokenId.putIfAbsent(tokenId, port);
+		if (existingPort != null) {
+			return existingPort;
+		}
+		idleSinceBySlot.set(port - lowerPort, idleSince);
+		tokenIdsBySlot.set(port - lowerPort, tokenId);
+		return null;
+	}
+
+	/**
+	 * Removes the token of port. A token is removed by exactly one call, the
+	 * one that clears its slot, whether by port or by token id; only that call
+	 * gets the token back and may free the port.
+	 *
+	 * @return the removed token, or null if there was none or another call
+	 *         removed it.
+	 */
+	public Token removeByPort(int port) {
+		if (!isInRange(port)) {
+			return null;
+		}
+		int slot = port - lowerPort;
+		String tokenId = tokenIdsBySlot.get(slot);
+		if (tokenId == null || !tokenIdsBySlot.compareAndSet(slot, tokenId, null)) {
+			return null;
+		}
+		Token token = toToken(tokenId, port);
+		portsByTokenId.remove(tokenId, port);
+		return token;
+	}
+
+	/**
+	 * Removes tokenId, under the same rule as {@link #removeByPort(int)}.
+	 */
+	public Token removeByTokenId(String tokenId) {
+		if (tokenId == null) {
+			return null;
+		}
+		Integer port = portsByTokenId.get(tokenId);
+		if (port == null || !tokenIdsBySlot.compareAndSet(port - lowerPort, tokenId, null)) {
+			return null;
+		}
+		Token token = toToken(tokenId, port);
+		portsByTokenId.remove(tokenId, port);
+		return token;
+	}
+
+	public void setIdleSince(Token token, long idleSince) {
+		int port = token.getPort();
+		if (isInRange(port) && token.getTokenId().equals(tokenIdsBySlot.get(port - lowerPort))) {
+			idleSinceBySlot.set(port - lowerPort, idleSince);
+		}
+	}
+
+	public List<Token> getTokens() {
+		List<Token> tokens = new ArrayList<Token>(portsByTokenId.size());
+		for (Map.Entry<String, Integer> entry : portsByTokenId.entrySet()) {
+			tokens.add(toToken(entry.getKey(), entry.getValue()));
+		}
+		return tokens;
+	}
+
+	public int size() {
+		return portsByTokenId.size();
+	}
+
+	public boolean isInRange(int port) {
+		return port >= lowerPort && port <= higherPort;
+	}
+
+	private Token toToken(String tokenId, int port) {
+		Token token = new Token(tokenId, port, sshServerPort);
+		token.setLastIdleCheck(idleSinceBySlot.get(port - lowerPort));
+		return token;
+	}
+
+}
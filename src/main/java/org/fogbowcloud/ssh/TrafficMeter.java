@@ -0,0 +1,54 @@
+package org.fogbowcloud.ssh;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes forwarded by a {@link TunnelServer}, in both directions,
+ * and derives its rate from samples taken at most once per second.
+ */
+public class TrafficMeter {
+
+	private static final long SAMPLE_INTERVAL = 1000;
+
+	private final AtomicLong transferredBytes = new AtomicLong();
+	private volatile long sampleTime;
+	private long sampleBytes;
+	private volatile long bytesPerSecond;
+
+	public TrafficMeter() {
+		this(System.currentTimeMillis());
+	}
+
+	protected TrafficMeter(long startTime) {
+		this.sampleTime = startTime;
+	}
+
+	public void record(long bytes) {
+		transferredBytes.addAndGet(bytes);
+	}
+
+	public long getTransferredBytes() {
+		return transferredBytes.get();
+	}
+
+	public long getBytesPerSecond() {
+		return getBytesPerSecond(System.currentTimeMillis());
+	}
+
+	protected long getBytesPerSecond(long now) {
+		if (now - sampleTime < SAMPLE_INTERVAL) {
+			return bytesPerSecond;
+		}
+		synchronized (this) {
+			long elapsed = now - sampleTime;
+			if (elapsed >= SAMPLE_INTERVAL) {
+				long bytes = transferredBytes.get();
+				bytesPerSecond = (bytes - sampleBytes) * 1000 / elapsed;
+				sampleBytes = bytes;
+				sampleTime = now;
+			}
+			return bytesPerSecond;
+		}
+	}
+
+}
@@ -1,23 +1,27 @@
 package org.fogbowcloud.ssh;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.UnsupportedEncodingException;
-import java.security.KeyPair;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
-import org.apache.sshd.common.util.Base64;
 import org.fogbowcloud.ssh.db.TokenDataStore;
 import org.fogbowcloud.ssh.db.TunnelServerDataStore;
 import org.fogbowcloud.ssh.model.Token;
@@ -31,17 +35,20 @@ public class TunnelHttpServer extends NanoHTTPD {
 
 	// private TunnelServer tunneling;
 	private static final int SSH_SERVER_VERIFICATION_TIME = 300;
-	private static final long TOKEN_EXPIRATION_CHECK_INTERVAL = 30L; // 30s in
-																		// seconds
+	private static final long STANDBY_TUNNEL_SERVERS_FILL_DELAY = 100;
 	private static final Logger LOGGER = Logger.getLogger(TunnelHttpServer.class);
 
 	private TokenDataStore tokenDs;
 	private TunnelServerDataStore tunnelServerDs;
 
 	private List<TunnelServer> tunnelServers;
+	private final TokenDirectory tokenDirectory = new TokenDirectory();
 
 	private String hostKeyPath;
-	private KeyPair kp;
+	private final HostKey hostKey;
+	private volatile String negotiationProfile;
+	private volatile ChannelWindowSettings channelWindowSettings;
+	private volatile ForwardingSettings forwardingSettings;
 
 	private int lowerPort;
 	private int higherPort;
@@ -52,13 +59,34 @@ public class TunnelHttpServer extends NanoHTTPD {
 	private int checkSSHServersInterval;
 
 	private int portsPerShhServer;
+	private long restoreTime;
+	private SharedSshServer sharedSshServer;
+	private final NioWorkerPool nioWorkerPool;
+	private final Queue<TunnelServer> standbyTunnelServers = new ConcurrentLinkedQueue<TunnelServer>();
+	private final AtomicBoolean fillingStandbyTunnelServers = new AtomicBoolean(false);
+	private volatile int standbyTunnelServersNumber;
+	private volatile PlacementStrategy placementStrategy = new PlacementStrategies.FirstFit();
 
 	private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-	private ScheduledExecutorService monitorExpiredTokensExecutor = Executors.newScheduledThreadPool(1);
+	private final IdleTokenTimer idleTokenTimer = new IdleTokenTimer(new IdleTokenTimer.ExpirationHandler() {
+		@Override
+		public void onExpired(TunnelServer tunnelServer, String tokenId) {
+			expireToken(tunnelServer, tokenId);
+		}
+	});
 
 	protected TunnelHttpServer(int httpPort, String sshTunnelHost, int lowerSshTunnelPort, int higherSshTunnelPort,
 			int lowerPort, int higherPort, Long idleTokenTimeout, String hostKeyPath, int portsPerShhServer,
 			TokenDataStore tokenDs, TunnelServerDataStore tunnelServerDs, boolean startServers, boolean clearDatastore) throws Exception {
+		this(httpPort, sshTunnelHost, lowerSshTunnelPort, higherSshTunnelPort, lowerPort, higherPort, idleTokenTimeout,
+				hostKeyPath, portsPerShhServer, tokenDs, tunnelServerDs, startServers, clearDatastore, false,
+				NioWorkerPool.parseNioWorkers(null), null);
+	}
+
+	protected TunnelHttpServer(int httpPort, String sshTunnelHost, int lowerSshTunnelPort, int higherSshTunnelPort,
+			int lowerPort, int higherPort, Long idleTokenTimeout, String hostKeyPath, int portsPerShhServer,
+			TokenDataStore tokenDs, TunnelServerDataStore tunnelServerDs, boolean startServers, boolean clearDatastore,
+			boolean sharedSshServer, int nioWorkers, String hostKeyAlgorithm) throws Exception {
 
 		super(httpPort);
 		this.hostKeyPath = hostKeyPath;
@@ -72,36 +100,68 @@ public class TunnelHttpServer extends NanoHTTPD {
 		this.portsPerShhServer = portsPerShhServer;
 		this.tokenDs = tokenDs;
 		this.tunnelServerDs = tunnelServerDs;
+		this.nioWorkerPool = new NioWorkerPool(nioWorkers);
+		this.hostKey = new HostKey(hostKeyPath, hostKeyAlgorithm);
+		if (sharedSshServer) {
+			this.sharedSshServer = new SharedSshServer(sshTunnelHost, hostKey, tokenDirectory);
+			nioWorkerPool.configure(this.sharedSshServer);
+		}
 		
 		if(!clearDatastore){
 
-			tunnelServers = tunnelServerDs.getAllTunnelServers();
+			long restoreStartTime = System.currentTimeMillis();
+			tunnelServers = new CopyOnWriteArrayList<TunnelServer>(tunnelServerDs.getAllTunnelServers());
 
 			if (tunnelServers.size() > 0) {
+				Map<Integer, List<Token>> tokensBySshServerPort = groupBySshServerPort(tokenDs.getAllTokenPorts());
 				for (TunnelServer tunnelServer : tunnelServers) {
 
-					List<Token> tokens = tokenDs.getAllTokenPortsBySshServerPort(tunnelServer.getSshTunnelPort());
-					tunnelServer.setTokens(tokens);
-					if(startServers){
-						this.startTunnelServer(tunnelServer);
-					}
+					List<Token> tokens = tokensBySshServerPort.get(tunnelServer.getSshTunnelPort());
+					tunnelServer.setTokens(tokens == null ? new ArrayList<Token>() : tokens);
+					setUpTunnelServer(tunnelServer);
+					tokenDirectory.registerAll(tunnelServer);
+				}
+				if(startServers){
+					this.startTunnelServers(tunnelServers);
 				}
 			}
+			this.restoreTime = System.currentTimeMillis() - restoreStartTime;
+			LOGGER.info("Restored " + tunnelServers.size() + " tunnel servers with " + tokenDirectory.size()
+					+ " tokens in " + restoreTime + " ms.");
 			
 		}else{
 			this.tokenDs.deleteAll();
 			this.tunnelServerDs.deleteAll();
-			tunnelServers = new ArrayList<TunnelServer>();
+			tunnelServers = new CopyOnWriteArrayList<TunnelServer>();
 		}
 	}
 
 	public TunnelHttpServer(int httpPort, String sshTunnelHost, int lowerSshTunnelPort, int higherSshTunnelPort,
 			int lowerPort, int higherPort, Long idleTokenTimeout, String hostKeyPath, int portsPerShhServer,
 			int checkSSHServersInterval, String dataStoreUrl, boolean cleanDataStore) throws Exception {
+		this(httpPort, sshTunnelHost, lowerSshTunnelPort, higherSshTunnelPort, lowerPort, higherPort, idleTokenTimeout,
+				hostKeyPath, portsPerShhServer, checkSSHServersInterval, dataStoreUrl, cleanDataStore, false,
+				NioWorkerPool.parseNioWorkers(null), null);
+	}
+
+	/**
+	 * @param sharedSshServer
+	 *            if true, a single {@link SharedSshServer} serves the tokens of
+	 *            all tunnel servers instead of one SshServer per tunnel server.
+	 * @param nioWorkers
+	 *            size of the {@link NioWorkerPool} shared by all ssh servers.
+	 * @param hostKeyAlgorithm
+	 *            algorithm of the host key, see {@link HostKey}.
+	 */
+	public TunnelHttpServer(int httpPort, String sshTunnelHost, int lowerSshTunnelPort, int higherSshTunnelPort,
+			int lowerPort, int higherPort, Long idleTokenTimeout, String hostKeyPath, int portsPerShhServer,
+			int checkSSHServersInterval, String dataStoreUrl, boolean cleanDataStore, boolean sharedSshServer,
+			int nioWorkers, String hostKeyAlgorithm) throws Exception {
 		
 		this(httpPort, sshTunnelHost, lowerSshTunnelPort, higherSshTunnelPort, lowerPort, higherPort, idleTokenTimeout,
 				hostKeyPath, portsPerShhServer, new TokenDataStore(dataStoreUrl),
-				new TunnelServerDataStore(dataStoreUrl), true, cleanDataStore);
+				new TunnelServerDataStore(dataStoreUrl), true, cleanDataStore, sharedSshServer, nioWorkers,
+				hostKeyAlgorithm);
 
 		this.checkSSHServersInterval = checkSSHServersInterval == 0 ? SSH_SERVER_VERIFICATION_TIME
 				: checkSSHServersInterval;
@@ -131,24 +191,12 @@ public class TunnelHttpServer extends NanoHTTPD {
 							LOGGER.error(e.getMessage(), e);
 						}
 					}
+					scheduleStandbyTunnelServersFill();
 				}
 
 			}, this.checkSSHServersInterval, this.checkSSHServersInterval, TimeUnit.SECONDS);
 
-			monitorExpiredTokensExecutor.scheduleWithFixedDelay(new Runnable() {
-				@Override
-				public void run() {
-					for (TunnelServer tunnelServer : tunnelServers) {
-						List<Token> expiredTokens = new ArrayList<Token>(tunnelServer.getExpiredTokens());
-						try {
-							tokenDs.deleteListOfTokenPort(expiredTokens);
-						} catch (Exception e) {
-							LOGGER.error("Erro while trying to delete expired token from tunnel ["
-									+ tunnelServer.getSshTunnelPort() + "]", e);
-						}
-					}
-				}
-			}, 0L, TOKEN_EXPIRATION_CHECK_INTERVAL, TimeUnit.SECONDS);
+			idleTokenTimer.start();
 
 		} catch (IOException e) {
 			LOGGER.error(e.getMessage(), e);
@@ -173,10 +221,7 @@ public class TunnelHttpServer extends NanoHTTPD {
 
 			if (method.equals(Method.GET)) {
 				if (splitUri.length == 4 && splitUri[3].equals("all")) {
-					Map<String, Integer> ports = new HashMap<String, Integer>();
-					for (TunnelServer tunneling : tunnelServers) {
-						ports.putAll(tunneling.getPortByPrefix(tokenId));
-					}
+					Map<String, Integer> ports = tokenDirectory.getPortsByPrefix(tokenId);
 					return new NanoHTTPD.Response(new JSONObject(ports).toString());
 				} else {
 					Integer port = this.getPortByTokenId(tokenId);
@@ -189,46 +234,11 @@ public class TunnelHttpServer extends NanoHTTPD {
 			if (method.equals(Method.POST)) {
 
 				Token token = null;
-
-				if (tunnelServers != null && !tunnelServers.isEmpty()) {
-
-					for (TunnelServer tunneling : tunnelServers) {
-						
-						Integer instancePort = tunneling.getPort(tokenId);
-						
-						if (instancePort != null) {
-							token = new Token(tokenId, instancePort, tunneling.getSshTunnelPort());
-							break;
-						}
-					}
-				}
-
-				if (token == null) {
-					
-					try {
-						TunnelServer availableTunnelServer = null;
-						
-						if (tunnelServers != null && !tunnelServers.isEmpty()) {
-							for (TunnelServer tunneling : tunnelServers) {
-								if(!tunneling.isServerBusy()){
-									availableTunnelServer = tunneling;
-									break;
-								}
-							}
-						}
-						
-						if(availableTunnelServer == null){
-							availableTunnelServer = this.createNewTunnelServer();
-						}
-						
-						if (availableTunnelServer != null) {
-							token = this.createNewPort(tokenId, availableTunnelServer);
-						}
-						
-					} catch (Exception e) {
-						return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT,
-								"Error while creating shh server to handle new port.");
-					}
+				try {
+					token = this.allocatePort(tokenId);
+				} catch (Exception e) {
+					return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+							"Error while creating shh server to handle new port.");
 				}
 				
 				if(token == null){
@@ -242,6 +252,16 @@ public class TunnelHttpServer extends NanoHTTPD {
 
 			if (method.equals(Method.DELETE)) {
 
+				if (splitUri.length == 4 && splitUri[3].equals("all")) {
+					try {
+						List<Token> releasedTokens = this.releaseTokens(tokenDirectory.getTokenIdsByPrefix(tokenId));
+						return new NanoHTTPD.Response(toTokenIdsArray(releasedTokens).toString());
+					} catch (Exception e) {
+						LOGGER.error("Erro while trying to release tokens with prefix :" + tokenId, e);
+						return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+								"Token can not delete these ports due:" + e.getMessage());
+					}
+				}
 				if (splitUri.length == 4) {
 					String portNumber = splitUri[3];
 					if (Utils.isNumber(portNumber)) {
@@ -263,28 +283,76 @@ public class TunnelHttpServer extends NanoHTTPD {
 
 			return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
 
-		} else if (splitUri[1].equals("hostkey")) {
-			if (method.equals(Method.GET)) {
-				if (kp == null) {
-					ObjectInputStream ois = null;
-					try {
-						ois = new ObjectInputStream(new FileInputStream(hostKeyPath));
-						this.kp = (KeyPair) ois.readObject();
-					} catch (Exception e) {
-						return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal error");
-					} finally {
-						try {
-							ois.close();
-						} catch (Exception e) {
-						}
-					}
+		} else if (splitUri[1].equals("tokens")) {
+
+			if (splitUri.length > 2) {
+				return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
+			}
+
+			if (method.equals(Method.POST)) {
+				List<String> tokenIds = null;
+				try {
+					tokenIds = readTokenIds(session);
+				} catch (Exception e) {
+					return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_PLAINTEXT,
+							"Request body must be a JSON array of token ids.");
 				}
+
+				Map<String, Token> tokens = null;
+				try {
+					tokens = this.allocatePorts(tokenIds);
+				} catch (Exception e) {
+					LOGGER.error("Error while allocating ports to tokens " + tokenIds, e);
+					return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+							"Error while creating shh server to handle new ports.");
+				}
+
+				// Return format: {"tokenId": "instancePort:sshTunnelServerPort", ...}
+				// with null for tokens that didn't get any port.
+				JSONObject ports = new JSONObject();
+				for (String tokenId : tokenIds) {
+					Token token = tokens.get(tokenId);
+					ports.put(tokenId, token == null ? JSONObject.NULL
+							: token.getPort() + ":" + token.getSshServerPort());
+				}
+				return new NanoHTTPD.Response(ports.toString());
+			}
+
+			if (method.equals(Method.DELETE)) {
+				List<String> tokenIds = null;
 				try {
-					String pk = new String(Base64.encodeBase64(kp.getPublic().getEncoded()), "utf-8");
-					return new NanoHTTPD.Response(pk);
-				} catch (UnsupportedEncodingException e) {
+					tokenIds = readTokenIds(session);
+				} catch (Exception e) {
+					return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_PLAINTEXT,
+							"Request body must be a JSON array of token ids.");
+				}
+				try {
+					List<Token> releasedTokens = this.releaseTokens(tokenIds);
+					return new NanoHTTPD.Response(toTokenIdsArray(releasedTokens).toString());
+				} catch (Exception e) {
+					LOGGER.error("Erro while trying to release tokens " + tokenIds, e);
+					return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+							"Token can not delete these ports due:" + e.getMessage());
+				}
+			}
+
+			return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
+
+		} else if (splitUri[1].equals("hostkey")) {
+			if (method.equals(Method.GET)) {
+				String pk = hostKey.getPublicKey();
+				if (pk == null) {
 					return new NanoHTTPD.Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal error");
 				}
+				String eTag = hostKey.getETag();
+				NanoHTTPD.Response response;
+				if (eTag.equals(session.getHeaders().get("if-none-match"))) {
+					response = new NanoHTTPD.Response(Status.NOT_MODIFIED, MIME_PLAINTEXT, "");
+				} else {
+					response = new NanoHTTPD.Response(pk);
+				}
+				response.addHeader("ETag", eTag);
+				return response;
 			}
 
 			return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
@@ -315,21 +383,223 @@ public class TunnelHttpServer extends NanoHTTPD {
 				
 			}
 
+			return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
+
+		} else if (splitUri[1].equals("metrics")) {
+
+			if (method.equals(Method.GET)) {
+				return new NanoHTTPD.Response(getMetrics().toString());
+			}
+
 			return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
 		}
 
 		return new NanoHTTPD.Response(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "");
 	}
 	
+	/**
+	 * Returns the token already assigned to tokenId or assigns it a port on the
+	 * tunnel server chosen by the {@link PlacementStrategy}, creating a new
+	 * tunnel server when it asks for one. Concurrent callers may race for the last port of a
+	 * server, in which case the loser just moves on to the next one.
+	 */
+	protected Token allocatePort(String tokenId) throws Exception {
+		Token token = tokenDirectory.getToken(tokenId);
+		while (token == null) {
+			TunnelServer availableTunnelServer = getAvailableTunnelServer();
+			if (availableTunnelServer == null) {
+				return null;
+			}
+			token = this.createNewPort(tokenId, availableTunnelServer);
+		}
+		return token;
+	}
+
+	private TunnelServer findAvailableTunnelServer() {
+		if (tunnelServers == null) {
+			return null;
+		}
+		return placementStrategy.select(tunnelServers, canCreateTunnelServer());
+	}
+
+	private TunnelServer getAvailableTunnelServer() throws Exception {
+		TunnelServer availableTunnelServer = findAvailableTunnelServer();
+		if (availableTunnelServer != null) {
+			return availableTunnelServer;
+		}
+		synchronized (this) {
+			availableTunnelServer = findAvailableTunnelServer();
+			if (availableTunnelServer == null) {
+				availableTunnelServer = this.createNewTunnelServer();
+			}
+			if (availableTunnelServer == null && tunnelServers != null) {
+				// No room for a new tunnel server, take any one with free ports
+				availableTunnelServer = placementStrategy.select(tunnelServers, false);
+			}
+			return availableTunnelServer;
+		}
+	}
+
+	private boolean canCreateTunnelServer() {
+		if (!standbyTunnelServers.isEmpty()) {
+			return true;
+		}
+		int portGroups = (higherPort - lowerPort + portsPerShhServer - 1) / portsPerShhServer;
+		int sshTunnelPorts = higherSshTunnelPort - lowerSshTunnelPort + 1;
+		return tunnelServers.size() + standbyTunnelServers.size() < Math.min(portGroups, sshTunnelPorts);
+	}
+
+	/**
+	 * Batch version of {@link #allocatePort(String)}: asks the
+	 * {@link PlacementStrategy} for a tunnel server for each token in turn and
+	 * persists all the new tokens in a single transaction. If a tunnel server
+	 * can't be created or the transaction fails, the ports already given to
+	 * new tokens are released again.
+	 * 
+	 * @return the token of each id that got a port.
+	 * @throws Exception
+	 *             if a tunnel server couldn't be created or the new tokens
+	 *             couldn't be persisted.
+	 */
+	protected Map<String, Token> allocatePorts(List<String> tokenIds) throws Exception {
+		Map<String, Token> tokens = new LinkedHashMap<String, Token>();
+		List<Token> newTokens = new ArrayList<Token>();
+
+		try {
+			for (String tokenId : tokenIds) {
+				Token token = tokenDirectory.getToken(tokenId);
+				while (token == null) {
+					TunnelServer availableTunnelServer = getAvailableTunnelServer();
+					if (availableTunnelServer == null) {
+						break;
+					}
+					token = assignPort(tokenId, availableTunnelServer, newTokens);
+				}
+				if (token != null) {
+					tokens.put(tokenId, token);
+				}
+			}
+
+			if (!newTokens.isEmpty() && tokenDs.insertListOfTokenPort(newTokens) < newTokens.size()) {
+				throw new Exception("Couldn't save the " + newTokens.size() + " new tokens.");
+			}
+		} catch (Exception e) {
+			releaseUnsavedTokens(newTokens);
+			throw e;
+		}
+		return tokens;
+	}
+
+	private void releaseUnsavedTokens(List<Token> unsavedTokens) {
+		Set<TunnelServer> affectedTunnelServers = new HashSet<TunnelServer>();
+		for (Token token : unsavedTokens) {
+			TunnelServer tunneling = tokenDirectory.getTunnelServer(token.getTokenId());
+			if (tunneling == null) {
+				continue;
+			}
+			Integer port = tunneling.getPort(token.getTokenId());
+			if (port == null || !port.equals(token.getPort())) {
+				continue;
+			}
+			Token released = tunneling.releasePort(port);
+			if (released == null) {
+				continue;
+			}
+			tokenDirectory.unregister(released, tunneling);
+			affectedTunnelServers.add(tunneling);
+		}
+		for (TunnelServer tunneling : affectedTunnelServers) {
+			if (tunneling.getActiveTokensNumber() == 0) {
+				try {
+					this.removeTunnelServer(tunneling);
+				} catch (InterruptedException e) {
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
 	protected Token createNewPort(String tokenId, TunnelServer tunnel) throws Exception{
 		
-		Token token = tunnel.createPort(tokenId);
-		tokenDs.insertTokenPort(token);
+		List<Token> newTokens = new ArrayList<Token>(1);
+		Token token = assignPort(tokenId, tunnel, newTokens);
+		if (!newTokens.isEmpty()) {
+			tokenDs.insertTokenPort(token);
+		}
 		
 		return token;
 	}
 
-	protected TunnelServer createNewTunnelServer() throws Exception {
+	private Token assignPort(String tokenId, TunnelServer tunnel, List<Token> newTokens) {
+		Token token = tunnel.createPort(tokenId);
+		if (token == null) {
+			return null;
+		}
+		TunnelServer owner = tokenDirectory.registerIfAbsent(token, tunnel);
+		if (owner != null && owner != tunnel) {
+			// Another request got a port for the same token on another server
+			tunnel.releasePort(token.getPort());
+			return owner.getToken(tokenId);
+		}
+		if (owner == null) {
+			newTokens.add(token);
+		}
+		return token;
+	}
+
+	private List<String> readTokenIds(IHTTPSession session) throws Exception {
+		String body = null;
+		if (Method.POST.equals(session.getMethod())) {
+			Map<String, String> files = new HashMap<String, String>();
+			session.parseBody(files);
+			body = files.get("postData");
+		} else {
+			// NanoHTTPD only hands the body of POST requests to parseBody
+			String contentLength = session.getHeaders().get("content-length");
+			byte[] content = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+			int read = 0;
+			while (read < content.length) {
+				int count = session.getInputStream().read(content, read, content.length - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			body = new String(content, 0, read, "utf-8");
+		}
+		JSONArray tokenIdsArray = new JSONArray(body);
+		List<String> tokenIds = new ArrayList<String>(tokenIdsArray.length());
+		for (int index = 0; index < tokenIdsArray.length(); index++) {
+			tokenIds.add(tokenIdsArray.getString(index));
+		}
+		return tokenIds;
+	}
+
+	/**
+	 * Adds a started tunnel server to this node, taking a standby one when
+	 * there is any and provisioning it inline otherwise.
+	 */
+	protected synchronized TunnelServer createNewTunnelServer() throws Exception {
+		TunnelServer tunneling = standbyTunnelServers.poll();
+		if (tunneling == null) {
+			tunneling = provisionTunnelServer();
+			if (tunneling == null) {
+				return null;
+			}
+		}
+		if(tunnelServers == null){
+			tunnelServers = new CopyOnWriteArrayList<TunnelServer>();
+		}
+		tunnelServers.add(tunneling);
+		scheduleStandbyTunnelServersFill();
+		return tunneling;
+	}
+
+	/**
+	 * Creates, persists and starts a tunnel server on the first free port group
+	 * and ssh port, without adding it to this node.
+	 */
+	private synchronized TunnelServer provisionTunnelServer() throws Exception {
 
 		// Setting available ports to this tunnel server
 		int initialPort = 0;
@@ -337,10 +607,14 @@ public class TunnelHttpServer extends NanoHTTPD {
 		int sshTunnelPort = 0;
 
 		Set<Integer> usedInitialPorts = new HashSet<Integer>();
+		Set<Integer> usedSshTunnelPorts = new HashSet<Integer>();
+		List<TunnelServer> knownTunnelServers = new ArrayList<TunnelServer>(standbyTunnelServers);
 		if(tunnelServers != null){
-			for (TunnelServer tunnelServer : tunnelServers) {
-				usedInitialPorts.add(new Integer(tunnelServer.getLowerPort()));
-			}
+			knownTunnelServers.addAll(tunnelServers);
+		}
+		for (TunnelServer tunnelServer : knownTunnelServers) {
+			usedInitialPorts.add(new Integer(tunnelServer.getLowerPort()));
+			usedSshTunnelPorts.add(new Integer(tunnelServer.getSshTunnelPort()));
 		}
 
 		for (int port = lowerPort; port < higherPort; port += portsPerShhServer) {
@@ -361,9 +635,11 @@ public class TunnelHttpServer extends NanoHTTPD {
 
 		// Setting the port that this tunnel Server listening to manage
 		// connections requests.
+		// All persisted tunnel servers are in memory, so there is no need to ask
+		// the data store for each port.
 		for (int port = lowerSshTunnelPort; port <= higherSshTunnelPort; port++) {
 			
-			if(tunnelServerDs.getTunnelServerByPort(port) == null){
+			if(!usedSshTunnelPorts.contains(new Integer(port))){
 				sshTunnelPort = port;
 				break;
 			}
@@ -376,14 +652,121 @@ public class TunnelHttpServer extends NanoHTTPD {
 		TunnelServer tunneling = new TunnelServer(sshTunnelHost, sshTunnelPort, initialPort, endPort, idleTokenTimeout,
 				hostKeyPath, new ArrayList<Token>());
 
+		setUpTunnelServer(tunneling);
 		tunnelServerDs.insertTunnelServer(tunneling);
-		if(tunnelServers == null){
-			tunnelServers = new ArrayList<TunnelServer>();
+		try {
+			this.startTunnelServer(tunneling);
+		} catch (Exception e) {
+			tunnelServerDs.deleteTunnelServer(tunneling);
+			throw e;
 		}
-		tunnelServers.add(tunneling);
 		return tunneling;
 	}
 
+	/**
+	 * Provisions tunnel servers in the background until there are
+	 * standbyTunnelServersNumber of them waiting to be used.
+	 */
+	private void scheduleStandbyTunnelServersFill() {
+		if (standbyTunnelServersNumber <= 0 || standbyTunnelServers.size() >= standbyTunnelServersNumber
+				|| !fillingStandbyTunnelServers.compareAndSet(false, true)) {
+			return;
+		}
+		// The delay lets the request that took a standby server persist its token
+		// before the fill competes with it for the data store
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fillStandbyTunnelServers();
+				} finally {
+					fillingStandbyTunnelServers.set(false);
+				}
+			}
+		}, STANDBY_TUNNEL_SERVERS_FILL_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private void fillStandbyTunnelServers() {
+		while (standbyTunnelServers.size() < standbyTunnelServersNumber) {
+			try {
+				synchronized (this) {
+					if (standbyTunnelServers.size() >= standbyTunnelServersNumber) {
+						return;
+					}
+					TunnelServer tunneling = provisionTunnelServer();
+					if (tunneling == null) {
+						return;
+					}
+					standbyTunnelServers.add(tunneling);
+				}
+			} catch (Exception e) {
+				LOGGER.error("Erro while trying to provision a standby tunnel server", e);
+				return;
+			}
+		}
+	}
+
+	public int getStandbyTunnelServersNumber() {
+		return standbyTunnelServersNumber;
+	}
+
+	public void setStandbyTunnelServersNumber(int standbyTunnelServersNumber) {
+		this.standbyTunnelServersNumber = standbyTunnelServersNumber;
+		scheduleStandbyTunnelServersFill();
+	}
+
+	protected List<TunnelServer> getStandbyTunnelServers() {
+		return new ArrayList<TunnelServer>(standbyTunnelServers);
+	}
+
+	private static Map<Integer, List<Token>> groupBySshServerPort(List<Token> tokens) {
+		Map<Integer, List<Token>> tokensBySshServerPort = new HashMap<Integer, List<Token>>();
+		for (Token token : tokens) {
+			List<Token> sshServerTokens = tokensBySshServerPort.get(token.getSshServerPort());
+			if (sshServerTokens == null) {
+				sshServerTokens = new ArrayList<Token>();
+				tokensBySshServerPort.put(token.getSshServerPort(), sshServerTokens);
+			}
+			sshServerTokens.add(token);
+		}
+		return tokensBySshServerPort;
+	}
+
+	/**
+	 * Starts the restored tunnel servers in parallel, on as many threads as the
+	 * NIO worker pool. A server that fails to start is logged and left out.
+	 */
+	private void startTunnelServers(List<TunnelServer> tunnelServersToStart) throws InterruptedException {
+		int threads = Math.max(1, Math.min(tunnelServersToStart.size(), nioWorkerPool.getNioWorkers()));
+		ExecutorService startExecutor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Boolean>> starts = new ArrayList<Callable<Boolean>>();
+			for (final TunnelServer tunnelServer : tunnelServersToStart) {
+				starts.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return startTunnelServer(tunnelServer);
+					}
+				});
+			}
+			List<Future<Boolean>> results = startExecutor.invokeAll(starts);
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					LOGGER.error("Erro while trying to start tunnel ["
+							+ tunnelServersToStart.get(i).getSshTunnelPort() + "]", e.getCause());
+				}
+			}
+		} finally {
+			startExecutor.shutdown();
+		}
+	}
+
+	protected long getRestoreTime() {
+		return restoreTime;
+	}
+
 	protected boolean startTunnelServer(TunnelServer tunneling)
 			throws Exception {
 		if(tunneling != null){
@@ -398,7 +781,123 @@ public class TunnelHttpServer extends NanoHTTPD {
 	}
 	
 	protected void setTunnelServers(List<TunnelServer> tunnelServers){
-		this.tunnelServers = tunnelServers;
+		this.tunnelServers = new CopyOnWriteArrayList<TunnelServer>(tunnelServers);
+		this.tokenDirectory.setTunnelServers(tunnelServers);
+		for (TunnelServer tunnelServer : tunnelServers) {
+			setUpTunnelServer(tunnelServer);
+		}
+	}
+
+	private void setUpTunnelServer(TunnelServer tunnelServer) {
+		// Tunnel servers read from the data store don't have these
+		if (tunnelServer.getHostKeyPath() == null) {
+			tunnelServer.setHostKeyPath(hostKeyPath);
+		}
+		if (idleTokenTimeout != null) {
+			tunnelServer.setIdleTokenTimeout(idleTokenTimeout);
+		}
+		tunnelServer.setHostKey(hostKey);
+		tunnelServer.setNegotiationProfile(negotiationProfile);
+		tunnelServer.setChannelWindowSettings(channelWindowSettings);
+		tunnelServer.setForwardingSettings(forwardingSettings);
+		tunnelServer.setSharedSshServer(sharedSshServer);
+		tunnelServer.setNioWorkerPool(nioWorkerPool);
+		tunnelServer.setIdleTokenTimer(idleTokenTimer);
+	}
+
+	protected NioWorkerPool getNioWorkerPool() {
+		return nioWorkerPool;
+	}
+
+	protected JSONObject getMetrics() {
+		JSONObject metrics = new JSONObject();
+		metrics.put("tunnel-servers", tunnelServers == null ? 0 : tunnelServers.size());
+		metrics.put("standby-tunnel-servers", standbyTunnelServers.size());
+		metrics.put("tokens", tokenDirectory.size());
+		metrics.put("restore-time", restoreTime);
+		metrics.put("nio-workers", nioWorkerPool.getNioWorkers());
+		metrics.put("nio-active-workers", nioWorkerPool.getActiveWorkers());
+		metrics.put("nio-queue-depth", nioWorkerPool.getQueueDepth());
+		metrics.put("nio-completed-tasks", nioWorkerPool.getCompletedTasks());
+		return metrics;
+	}
+
+	protected SharedSshServer getSharedSshServer() {
+		return sharedSshServer;
+	}
+
+	public PlacementStrategy getPlacementStrategy() {
+		return placementStrategy;
+	}
+
+	public void setPlacementStrategy(PlacementStrategy placementStrategy) {
+		this.placementStrategy = placementStrategy;
+	}
+
+	public ChannelWindowSettings getChannelWindowSettings() {
+		return channelWindowSettings;
+	}
+
+	/**
+	 * Sets the window and packet sizes of the forwarded channels of every ssh
+	 * server, including the ones already running.
+	 */
+	public void setChannelWindowSettings(ChannelWindowSettings channelWindowSettings) {
+		this.channelWindowSettings = channelWindowSettings;
+		if (sharedSshServer != null) {
+			channelWindowSettings.apply(sharedSshServer.getProperties());
+		}
+		for (TunnelServer tunnelServer : tunnelServers) {
+			tunnelServer.setChannelWindowSettings(channelWindowSettings);
+		}
+		for (TunnelServer tunnelServer : standbyTunnelServers) {
+			tunnelServer.setChannelWindowSettings(channelWindowSettings);
+		}
+	}
+
+	public ForwardingSettings getForwardingSettings() {
+		return forwardingSettings;
+	}
+
+	/**
+	 * Sets how the forwarded channels of every ssh server stream data,
+	 * including the ones already running.
+	 */
+	public void setForwardingSettings(ForwardingSettings forwardingSettings) {
+		this.forwardingSettings = forwardingSettings;
+		if (sharedSshServer != null) {
+			forwardingSettings.apply(sharedSshServer.getProperties());
+		}
+		for (TunnelServer tunnelServer : tunnelServers) {
+			tunnelServer.setForwardingSettings(forwardingSettings);
+		}
+		for (TunnelServer tunnelServer : standbyTunnelServers) {
+			tunnelServer.setForwardingSettings(forwardingSettings);
+		}
+	}
+
+	public String getNegotiationProfile() {
+		return negotiationProfile;
+	}
+
+	/**
+	 * Sets the {@link NegotiationProfiles} profile of every ssh server, including
+	 * the ones already running.
+	 */
+	public void setNegotiationProfile(String negotiationProfile) {
+		if (!NegotiationProfiles.isValid(negotiationProfile)) {
+			throw new IllegalArgumentException("Unknown negotiation profile [" + negotiationProfile + "].");
+		}
+		this.negotiationProfile = negotiationProfile;
+		if (sharedSshServer != null) {
+			NegotiationProfiles.apply(negotiationProfile, sharedSshServer);
+		}
+		for (TunnelServer tunnelServer : tunnelServers) {
+			tunnelServer.setNegotiationProfile(negotiationProfile);
+		}
+		for (TunnelServer tunnelServer : standbyTunnelServers) {
+			tunnelServer.setNegotiationProfile(negotiationProfile);
+		}
 	}
 
 	protected void setTokenDs(TokenDataStore tokenDs) {
@@ -410,44 +909,130 @@ public class TunnelHttpServer extends NanoHTTPD {
 	}
 
 	private Integer getPortByTokenId(String tokenId) {
-		for (TunnelServer tunneling : tunnelServers) {
-			if (tunneling.getPort(tokenId) != null) {
-				return tunneling.getPort(tokenId);
-			}
+		Token token = tokenDirectory.getToken(tokenId);
+		if (token == null) {
+			return null;
 		}
-		return null;
+		return token.getPort();
 	}
 
 	// TODO: Create new method to validate if the requester have available quota
 	// to request new port.
 
 	private boolean releaseInstancePort(String tokenId, Integer port) throws Exception {
-		for (TunnelServer tunneling : tunnelServers) {
+		TunnelServer tunneling = tokenDirectory.getTunnelServer(tokenId);
+		if (tunneling == null) {
+			return false;
+		}
 
-			Integer actualPort = tunneling.getPort(tokenId);
+		Integer actualPort = tunneling.getPort(tokenId);
 
-			if (actualPort != null && (actualPort.compareTo(port) == 0)) {
-				Token token = tunneling.releasePort(port);
-				tokenDs.deleteTokenPort(token);
-				if (tunneling.getActiveTokensNumber() == 0) {
-					try {
-						this.removeTunnelServer(tunneling);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+		if (actualPort != null && (actualPort.compareTo(port) == 0)) {
+			Token token = tunneling.releasePort(port);
+			if (token == null) {
+				// Released or expired by someone else in the meantime
+				return false;
+			}
+			tokenDirectory.unregister(token, tunneling);
+			tokenDs.deleteTokenPort(token);
+			if (tunneling.getActiveTokensNumber() == 0) {
+				try {
+					this.removeTunnelServer(tunneling);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
 				}
-				return true;
 			}
-			
+			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Releases the ports of the given tokens, closing their forwarders, and
+	 * deletes all of them from the data store in a single transaction. Unknown
+	 * token ids are ignored.
+	 * 
+	 * @return the released tokens.
+	 */
+	protected List<Token> releaseTokens(List<String> tokenIds) throws Exception {
+		List<Token> releasedTokens = new ArrayList<Token>();
+		Set<TunnelServer> affectedTunnelServers = new HashSet<TunnelServer>();
+		for (String tokenId : tokenIds) {
+			TunnelServer tunneling = tokenDirectory.getTunnelServer(tokenId);
+			if (tunneling == null) {
+				continue;
+			}
+			Integer port = tunneling.getPort(tokenId);
+			if (port == null) {
+				continue;
+			}
+			Token token = tunneling.releasePort(port);
+			if (token == null) {
+				continue;
+			}
+			tokenDirectory.unregister(token, tunneling);
+			releasedTokens.add(token);
+			affectedTunnelServers.add(tunneling);
+		}
+
+		if (!releasedTokens.isEmpty()) {
+			tokenDs.deleteListOfTokenPort(releasedTokens);
+		}
+		for (TunnelServer tunneling : affectedTunnelServers) {
+			if (tunneling.getActiveTokensNumber() == 0) {
+				try {
+					this.removeTunnelServer(tunneling);
+				} catch (InterruptedException e) {
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+		}
+		return releasedTokens;
+	}
+
+	private JSONArray toTokenIdsArray(List<Token> tokens) {
+		JSONArray tokenIdsArray = new JSONArray();
+		for (Token token : tokens) {
+			tokenIdsArray.put(token.getTokenId());
+		}
+		return tokenIdsArray;
+	}
+
+	protected void expireToken(TunnelServer tunnelServer, String tokenId) {
+		Token token = tunnelServer.expireToken(tokenId);
+		if (token == null) {
+			return;
+		}
+		tokenDirectory.unregister(token, tunnelServer);
+		try {
+			tokenDs.deleteTokenPort(token);
+		} catch (Exception e) {
+			LOGGER.error("Erro while trying to delete expired token [" + tokenId + "] from tunnel ["
+					+ tunnelServer.getSshTunnelPort() + "]", e);
+		}
+	}
+
+	protected IdleTokenTimer getIdleTokenTimer() {
+		return idleTokenTimer;
+	}
+
+	/**
+	 * Stops and forgets tunneling if it has no tokens. Allocations that picked
+	 * it before it was closed fail to create ports on it and move on to
+	 * another server.
+	 */
 	private void removeTunnelServer(TunnelServer tunneling) throws InterruptedException {
-		if (tunneling != null) {
+		if (tunneling != null && tunneling.closeIfIdle()) {
 			tunneling.stop();
 			LOGGER.warn("Removing ssh server with port: " + tunneling.getSshTunnelPort());
-			tunnelServers.remove(tunneling.getSshTunnelPort());
+			tunnelServers.remove(tunneling);
+			tokenDirectory.unregisterAll(tunneling.getTokens(), tunneling);
+			try {
+				// Frees the ssh port for createNewTunnelServer
+				tunnelServerDs.deleteTunnelServer(tunneling);
+			} catch (Exception e) {
+				LOGGER.error("Erro while trying to delete tunnel [" + tunneling.getSshTunnelPort() + "]", e);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -1,19 +1,15 @@
 package org.fogbowcloud.ssh;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 import org.apache.sshd.SshServer;
 import org.apache.sshd.common.ForwardingFilter;
 import org.apache.sshd.common.NamedFactory;
-import org.apache.sshd.common.Service;
 import org.apache.sshd.common.Session;
 import org.apache.sshd.common.Session.AttributeKey;
 import org.apache.sshd.common.SshdSocketAddress;
@@ -24,8 +20,6 @@ import org.apache.sshd.server.CommandFactory;
 import org.apache.sshd.server.UserAuth;
 import org.apache.sshd.server.auth.UserAuthNone;
 import org.apache.sshd.server.command.UnknownCommand;
-import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
-import org.apache.sshd.server.session.ServerConnectionService;
 import org.apache.sshd.server.session.ServerSession;
 import org.fogbowcloud.ssh.model.Token;
 
@@ -35,10 +29,38 @@ public class TunnelServer {
 	
 	private static final int TOKEN_EXPIRATION_TIMEOUT = 1000 * 60 * 10; // 10min in ms
 	
-	private static final AttributeKey<String> TOKEN = new AttributeKey<String>();
-	private List<Token> tokens = new ArrayList<Token>();
+	static final AttributeKey<String> TOKEN = new AttributeKey<String>();
+	private volatile TokenRegistry tokens;
+	private volatile PortAllocator portAllocator;
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+	private final ForwarderRegistry forwarderRegistry = new ForwarderRegistry(new ForwarderRegistry.Listener() {
+		@Override
+		public void forwarderBound(int port) {
+			Token token = tokens.getByPort(port);
+			if (token != null) {
+				cancelIdleTimeout(token);
+			}
+		}
+
+		@Override
+		public void forwarderUnbound(int port) {
+			Token token = tokens.getByPort(port);
+			if (token != null) {
+				scheduleIdleTimeout(token);
+			}
+		}
+	});
+	private IdleTokenTimer idleTokenTimer;
+	private final TrafficMeter trafficMeter = new TrafficMeter();
 
 	private SshServer sshServer;
+	private SharedSshServer sharedSshServer;
+	private NioWorkerPool nioWorkerPool;
+	private HostKey hostKey;
+	private volatile String negotiationProfile;
+	private volatile ChannelWindowSettings channelWindowSettings;
+	private volatile ForwardingSettings forwardingSettings;
 	private String sshTunnelHost;
 	private int sshTunnelPort;
 	private int lowerPort;
@@ -59,73 +81,137 @@ public class TunnelServer {
 		this.hostKeyPath = hostKeyPath;
 		//+2 is to have a secure margin of works for ports. If number of ports is 5, workers will be set to 6;
 		this.nioWorkers = (higherPort - lowerPort)+2; 
-		this.tokens = tokens;
+		resetTokens(tokens);
 	}
 	
-	public synchronized Token createPort(String tokenId) {
+	/**
+	 * @return the token of tokenId, with a new port if it had none, or null if
+	 *         all ports are busy or this server has been closed.
+	 */
+	public Token createPort(String tokenId) {
 		if(tokenId == null){
 			return null;
 		}
-		Integer newPort = null;
-		for(Token token : tokens){
-			if(tokenId.equals(token.getTokenId())){
-				return token;
+		closeLock.readLock().lock();
+		try {
+			if (closed) {
+				LOGGER.debug("Token [" + tokenId + "] didn't get any port. Ssh server [" + sshTunnelPort
+						+ "] is closed.");
+				return null;
 			}
+			return allocatePort(tokenId);
+		} finally {
+			closeLock.readLock().unlock();
 		}
-		
-		for (int port = lowerPort; port <= higherPort; port++) {
-			if (isTaken(port)) {
-				continue;
-			}
-			newPort = port;
-			break;
+	}
+
+	private Token allocatePort(String tokenId) {
+		Token existingToken = tokens.getByTokenId(tokenId);
+		if (existingToken != null) {
+			return existingToken;
 		}
+		
+		Integer newPort = portAllocator.allocate();
 		if (newPort == null) {
 			LOGGER.debug("Token [" + tokenId + "] didn't get any port. All ports are busy.");
 			return null;
 		}
 		
-		LOGGER.debug("Token [" + tokenId + "] got port [" + newPort + "].");
+		if (tokens.putIfAbsent(tokenId, newPort, 0L) != null) {
+			portAllocator.free(newPort);
+			return tokens.getByTokenId(tokenId);
+		}
 		Token newToken = new Token(tokenId, newPort, sshTunnelPort);
-		tokens.add(newToken);
+		LOGGER.debug("Token [" + tokenId + "] got port [" + newPort + "].");
+		scheduleIdleTimeout(newToken);
 		return newToken;
 	}
 	
-	private boolean isTaken(int port) {
-		for (Token token : tokens) {
-			if (token.getPort().equals(port)) {
-				return true;
+	private void resetTokens(List<Token> tokenList) {
+		TokenRegistry newTokens = new TokenRegistry(lowerPort, higherPort, sshTunnelPort);
+		PortAllocator newPortAllocator = new PortAllocator(lowerPort, higherPort);
+		if (tokenList != null) {
+			for (Token token : tokenList) {
+				if (!newTokens.isInRange(token.getPort())) {
+					LOGGER.warn("Dropping token [" + token.getTokenId() + "]: its port [" + token.getPort()
+							+ "] is outside of the range [" + lowerPort + ":" + higherPort + "] of ssh server ["
+							+ sshTunnelPort + "].");
+					continue;
+				}
+				if (!newPortAllocator.reserve(token.getPort())) {
+					LOGGER.warn("Dropping token [" + token.getTokenId() + "]: its port [" + token.getPort()
+							+ "] is already taken by token [" + newTokens.getByPort(token.getPort()).getTokenId()
+							+ "] on ssh server [" + sshTunnelPort + "].");
+					continue;
+				}
+				Integer existingPort = newTokens.putIfAbsent(token.getTokenId(), token.getPort(),
+						token.getLastIdleCheck());
+				if (existingPort != null) {
+					newPortAllocator.free(token.getPort());
+					LOGGER.warn("Dropping port [" + token.getPort() + "] of token [" + token.getTokenId()
+							+ "]: it already has port [" + existingPort + "] on ssh server [" + sshTunnelPort + "].");
+				}
 			}
 		}
-		return false;
+		this.portAllocator = newPortAllocator;
+		this.tokens = newTokens;
 	}
-
-	private ReverseTunnelForwarder getActiveSession(int port) {
-		List<AbstractSession> activeSessions = sshServer.getActiveSessions();
-		for (AbstractSession session : activeSessions) {
-			Service rawService = ((ReverseTunnelSession)session).getService();
-			if (rawService == null) {
-				continue;
-			}
-			if (!(rawService instanceof ServerConnectionService)) {
-				continue;
-			}
-			ServerConnectionService service = (ServerConnectionService) rawService;
-			ReverseTunnelForwarder f = (ReverseTunnelForwarder) service.getTcpipForwarder();
-			for (SshdSocketAddress address : f.getLocalForwards()) {
-				if (address.getPort() == port) {
-					return f;
-				}
+	
+	private Token removeTokenAndFreePort(Token token) {
+		if (token != null) {
+			cancelIdleTimeout(token);
+			portAllocator.free(token.getPort());
+		}
+		return token;
+	}
+	
+	private void scheduleIdleTimeout(Token token) {
+		if (idleTokenTimer == null) {
+			return;
+		}
+		token.setLastIdleCheck(System.currentTimeMillis());
+		tokens.setIdleSince(token, token.getLastIdleCheck());
+		idleTokenTimer.schedule(this, token.getTokenId(), idleTokenTimeout);
+	}
+	
+	private void cancelIdleTimeout(Token token) {
+		token.setLastIdleCheck(0L);
+		tokens.setIdleSince(token, 0L);
+		if (idleTokenTimer != null) {
+			idleTokenTimer.cancel(this, token.getTokenId());
+		}
+	}
+	
+	private void scheduleIdleTokens() {
+		for (Token token : tokens.getTokens()) {
+			if (getActiveSession(token.getPort()) == null) {
+				scheduleIdleTimeout(token);
 			}
 		}
-		return null;
+	}
+
+	private ReverseTunnelForwarder getActiveSession(int port) {
+		return forwarderRegistry.getForwarder(port);
 	}
 
 	public void start() throws IOException {
+		if (sharedSshServer != null) {
+			sharedSshServer.bind(this);
+			return;
+		}
 		this.sshServer = SshServer.setUpDefaultServer();
-		SimpleGeneratorHostKeyProvider keyPairProvider = new SimpleGeneratorHostKeyProvider(hostKeyPath);
-		keyPairProvider.loadKeys();
-		sshServer.setKeyPairProvider(keyPairProvider);
+		NegotiationProfiles.apply(negotiationProfile, sshServer);
+		if (channelWindowSettings != null) {
+			channelWindowSettings.apply(sshServer.getProperties());
+		}
+		if (forwardingSettings != null) {
+			forwardingSettings.apply(sshServer.getProperties());
+		}
+		if (hostKey == null) {
+			hostKey = new HostKey(hostKeyPath);
+		}
+		hostKey.loadKeys();
+		sshServer.setKeyPairProvider(hostKey);
 		sshServer.setCommandFactory(createUnknownCommandFactory());
 		LinkedList<NamedFactory<UserAuth>> userAuthenticators = new LinkedList<NamedFactory<UserAuth>>();
 		
@@ -136,21 +222,7 @@ public class TunnelServer {
 					@Override
 					public Boolean auth(ServerSession session, String username,
 							String service, Buffer buffer) throws Exception {
-						
-						boolean hasSession = false;
-						
-						for(Token token : tokens){
-							if(username.equals(token.getTokenId())){
-								hasSession = true;
-							}
-						}
-						
-						if (!hasSession) {
-							session.close(true);
-							return false;
-						}
-						session.setAttribute(TOKEN, username);
-						return true;
+						return authenticate(session, username);
 					}
 				};
 			}
@@ -161,17 +233,49 @@ public class TunnelServer {
 			}});
 		
 		sshServer.setTcpipForwardingFilter(createAcceptAllFilter());
-		sshServer.setTcpipForwarderFactory(new ReverseTunnelForwarderFactory());
+		sshServer.setTcpipForwarderFactory(new ReverseTunnelForwarderFactory(forwarderRegistry, trafficMeter));
 		sshServer.setSessionFactory(new ReverseTunnelSessionFactory());
 		sshServer.setUserAuthFactories(userAuthenticators);
 		sshServer.setHost(sshTunnelHost == null ? "0.0.0.0" : sshTunnelHost);
 		sshServer.setPort(sshTunnelPort);
-		sshServer.setNioWorkers(nioWorkers);
+		if (nioWorkerPool != null) {
+			nioWorkerPool.configure(sshServer);
+		} else {
+			sshServer.setNioWorkers(nioWorkers);
+		}
 		
 		sshServer.start();
 	}
 
-	private static CommandFactory createUnknownCommandFactory() {
+	boolean authenticate(ServerSession session, String username) {
+		if (!tokens.containsTokenId(username)) {
+			session.close(true);
+			return false;
+		}
+		session.setAttribute(TOKEN, username);
+		return true;
+	}
+
+	boolean canListen(SshdSocketAddress address, Session session) {
+		String username = session.getAttribute(TOKEN);
+		if (username == null) {
+			session.close(true);
+			return false;
+		}
+		
+		Token token = tokens.getByTokenId(username);
+		if (token == null || !token.getPort().equals(address.getPort())) {
+			session.close(true);
+			return false;
+		}
+		ReverseTunnelForwarder existingSession = getActiveSession(token.getPort());
+		if (existingSession != null) {
+			existingSession.close(true);
+		}
+		return true;
+	}
+
+	static CommandFactory createUnknownCommandFactory() {
 		return new CommandFactory() {
 			@Override
 			public Command createCommand(String command) {
@@ -184,31 +288,7 @@ public class TunnelServer {
 		return new ForwardingFilter() {
 			@Override
 			public boolean canListen(SshdSocketAddress address, Session session) {
-				String username = session.getAttribute(TOKEN);
-				if (username == null) {
-					session.close(true);
-					return false;
-				}
-				
-				Token token = null;
-				
-				for(Token t : tokens){
-					if(t != null){
-						if(username.equals(t.getTokenId())){
-							token = t;
-						}
-					}
-				}
-				
-				if (token == null || !token.getPort().equals(address.getPort())) {
-					session.close(true);
-					return false;
-				}
-				ReverseTunnelForwarder existingSession = getActiveSession(token.getPort());
-				if (existingSession != null) {
-					existingSession.close(true);
-				}
-				return true;
+				return TunnelServer.this.canListen(address, session);
 			}
 			
 			@Override
@@ -230,76 +310,75 @@ public class TunnelServer {
 
 	public Integer getPort(String tokenId) {
 		
-		if(tokenId == null){
-			return null;
-		}
-		
-		for (Token token : tokens) {
-			if(tokenId.equals(token.getTokenId())){
-				return token.getPort();
-			}
-		}
-		return null;
+		return tokens.getPort(tokenId);
 	}
 	
-	public List<Token> getAllPorts() {
-		
-		return tokens;
+	public Token getToken(String tokenId) {
+		return tokens.getByTokenId(tokenId);
 	}
 	
-	public Map<String, Integer> getPortByPrefix(String tokenId) {
-		Map<String, Integer> portsByPrefix = new HashMap<String, Integer>();
-		Integer sshPort = getPort(tokenId);
-		if (sshPort != null) {
-			portsByPrefix.put("ssh", sshPort);
-		}
-		for (Token token : tokens) {
-			String tokenPrefix = tokenId + "-";
-			if (token.getTokenId().startsWith(tokenPrefix)) {
-				portsByPrefix.put(
-						token.getTokenId().substring(tokenPrefix.length()), 
-						token.getPort());
-			}
-		}
-		return portsByPrefix;
+	public List<Token> getAllPorts() {
+		
+		return tokens.getTokens();
 	}
 	
 	public boolean isServerBusy(){
-		for (int port = lowerPort; port <= higherPort; port++) {
-			if (!isTaken(port)) {
+		return closed || portAllocator.getFreePorts() == 0;
+	}
+
+	/**
+	 * Closes this server if it has no tokens, atomically with respect to
+	 * {@link #createPort(String)}, so no token can be given a port on a server
+	 * that is being removed.
+	 * 
+	 * @return whether this call closed the server; false if it has tokens or
+	 *         was already closed.
+	 */
+	public boolean closeIfIdle() {
+		closeLock.writeLock().lock();
+		try {
+			if (closed || tokens.size() > 0) {
 				return false;
 			}
+			closed = true;
+			return true;
+		} finally {
+			closeLock.writeLock().unlock();
 		}
-		return true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	public int getFreePortsNumber() {
+		return portAllocator.getFreePorts();
 	}
 	
-	//TODO: Create a new method to remove a token and release the relative port. 
 	public void removeToken(String tokenId){
-		tokens.remove(tokenId);
-		
+		removeTokenAndFreePort(tokens.removeByTokenId(tokenId));
 	}
 	
 	public Token releasePort(Integer port){
 		if(port != null){
-			Token tokenToRemove = null;
-			for(Token token : tokens){
-				if(port.compareTo(token.getPort()) == 0){
-					tokenToRemove = token;
-					break;
-				}
-			}
-			
-			if(this.getActiveSession(port.intValue()) != null){
-				this.getActiveSession(port.intValue()).close(true);
+			ReverseTunnelForwarder activeSession = getActiveSession(port.intValue());
+			if (activeSession != null) {
+				activeSession.close(true);
 			}
-			tokens.remove(tokenToRemove);
-			return tokenToRemove;
+			return removeTokenAndFreePort(tokens.removeByPort(port.intValue()));
 		}
 		return null;
 	}
 	
 	public void stop() throws InterruptedException{
 		
+		if (sharedSshServer != null) {
+			sharedSshServer.unbind(this);
+			return;
+		}
+		if (sshServer == null) {
+			return;
+		}
 		List<AbstractSession> activeSessions = sshServer.getActiveSessions();
 		if(activeSessions != null && !activeSessions.isEmpty()){
 			for (AbstractSession session : activeSessions) {
@@ -310,28 +389,19 @@ public class TunnelServer {
 		
 	}
 	
-	public Set<Token> getExpiredTokens(){
-		
-		Set<Token> tokensToExpire = new HashSet<Token>();
-		for (Token token : tokens) {
-			if (getActiveSession(token.getPort()) == null) {
-				long now = System.currentTimeMillis();
-				if (token.getLastIdleCheck() == 0) {
-					token.setLastIdleCheck(now);
-				}
-				if (now - token.getLastIdleCheck() > idleTokenTimeout) {
-					tokensToExpire.add(token);
-				}
-			} else {
-				token.setLastIdleCheck(0L);
-			}
-		}
-		for (Token token : tokensToExpire) {
-			LOGGER.debug("Expiring token [" + token + "].");
-			tokens.remove(token);
+	/**
+	 * Removes a token whose idle timeout fired, unless an agent has bound its
+	 * port in the meantime.
+	 * 
+	 * @return the expired token, or null if it is unknown or active again.
+	 */
+	public Token expireToken(String tokenId) {
+		Token token = tokens.getByTokenId(tokenId);
+		if (token == null || getActiveSession(token.getPort()) != null) {
+			return null;
 		}
-		return tokensToExpire;
-
+		LOGGER.debug("Expiring token [" + tokenId + "].");
+		return removeTokenAndFreePort(tokens.removeByTokenId(tokenId));
 	}
 
 	public int getActiveTokensNumber(){
@@ -351,11 +421,12 @@ public class TunnelServer {
 	}
 
 	public List<Token> getTokens() {
-		return tokens;
+		return tokens.getTokens();
 	}
 
 	public void setTokens(List<Token> tokens) {
-		this.tokens = tokens;
+		resetTokens(tokens);
+		scheduleIdleTokens();
 	}
 
 	public String getSshTunnelHost() {
@@ -370,6 +441,108 @@ public class TunnelServer {
 		this.idleTokenTimeout = idleTokenTimeout;
 	}
 
+	public IdleTokenTimer getIdleTokenTimer() {
+		return idleTokenTimer;
+	}
+
+	public void setIdleTokenTimer(IdleTokenTimer idleTokenTimer) {
+		this.idleTokenTimer = idleTokenTimer;
+		scheduleIdleTokens();
+	}
+
+	public ForwarderRegistry getForwarderRegistry() {
+		return forwarderRegistry;
+	}
+
+	public SharedSshServer getSharedSshServer() {
+		return sharedSshServer;
+	}
+
+	/**
+	 * Makes {@link #start()} and {@link #stop()} bind and unbind this server's
+	 * ssh port on the given shared server instead of running an own
+	 * {@link SshServer}.
+	 */
+	public void setSharedSshServer(SharedSshServer sharedSshServer) {
+		this.sharedSshServer = sharedSshServer;
+	}
+
+	public NioWorkerPool getNioWorkerPool() {
+		return nioWorkerPool;
+	}
+
+	/**
+	 * Makes {@link #start()} run the ssh server on the given shared pool instead
+	 * of an own pool sized by the port range.
+	 */
+	public void setNioWorkerPool(NioWorkerPool nioWorkerPool) {
+		this.nioWorkerPool = nioWorkerPool;
+	}
+
+	public String getNegotiationProfile() {
+		return negotiationProfile;
+	}
+
+	/**
+	 * Sets the {@link NegotiationProfiles} profile of the ssh server. A server
+	 * already running uses it for the next handshakes.
+	 */
+	public void setNegotiationProfile(String negotiationProfile) {
+		this.negotiationProfile = negotiationProfile;
+		SshServer sshServer = this.sshServer;
+		if (sshServer != null) {
+			NegotiationProfiles.apply(negotiationProfile, sshServer);
+		}
+	}
+
+	public ChannelWindowSettings getChannelWindowSettings() {
+		return channelWindowSettings;
+	}
+
+	/**
+	 * Sets the window and packet sizes of the forwarded channels. A server
+	 * already running uses them for the next channels.
+	 */
+	public void setChannelWindowSettings(ChannelWindowSettings channelWindowSettings) {
+		this.channelWindowSettings = channelWindowSettings;
+		SshServer sshServer = this.sshServer;
+		if (sshServer != null && channelWindowSettings != null) {
+			channelWindowSettings.apply(sshServer.getProperties());
+		}
+	}
+
+	public ForwardingSettings getForwardingSettings() {
+		return forwardingSettings;
+	}
+
+	/**
+	 * Sets how the forwarded channels stream data. A server already running
+	 * uses it for the next channels.
+	 */
+	public void setForwardingSettings(ForwardingSettings forwardingSettings) {
+		this.forwardingSettings = forwardingSettings;
+		SshServer sshServer = this.sshServer;
+		if (sshServer != null && forwardingSettings != null) {
+			forwardingSettings.apply(sshServer.getProperties());
+		}
+	}
+
+	public HostKey getHostKey() {
+		return hostKey;
+	}
+
+	/**
+	 * Makes {@link #start()} use an already loaded host key instead of reading
+	 * the host key path.
+	 */
+	public void setHostKey(HostKey hostKey) {
+		this.hostKey = hostKey;
+	}
+
+	public TrafficMeter getTrafficMeter() {
+		return trafficMeter;
+	}
+
 	public String getHostKeyPath() {
 		return hostKeyPath;
 	}
@@ -380,10 +553,12 @@ public class TunnelServer {
 
 	public void setLowerPort(int lowerPort) {
 		this.lowerPort = lowerPort;
+		resetTokens(tokens.getTokens());
 	}
 
 	public void setHigherPort(int higherPort) {
 		this.higherPort = higherPort;
+		resetTokens(tokens.getTokens());
 	}
 
 	
@@ -105,6 +105,63 @@ public class TokenDataStore {
 
 	}
 
+	public int insertListOfTokenPort(List<Token> tokens) throws Exception {
+
+		if (tokens == null || tokens.isEmpty()) {
+			LOGGER.error("There are no tokens to insert.");
+			return 0;
+		}
+
+		for (Token token : tokens) {
+			if (token == null || token.getTokenId() == null || token.getPort() == null) {
+				String msg = "Token Id and Token Port must not be null.";
+				LOGGER.error(msg);
+				throw new Exception(msg);
+			}
+		}
+
+		LOGGER.debug("Inserting " + tokens.size() + " new Tokens");
+
+		PreparedStatement preparedStatement = null;
+		Connection connection = null;
+
+		try {
+
+			connection = getConnection();
+			connection.setAutoCommit(false);
+			preparedStatement = connection.prepareStatement(INSERT_TOKEN_PORT_STATEMENT);
+			for (Token token : tokens) {
+				preparedStatement.setString(1, token.getTokenId());
+				preparedStatement.setInt(2, token.getPort());
+				preparedStatement.setInt(3, token.getSshServerPort());
+				preparedStatement.setLong(4, token.getLastIdleCheck());
+				preparedStatement.addBatch();
+			}
+			int bachExecution[] = preparedStatement.executeBatch();
+			if (hasBatchExecutionError(bachExecution)) {
+				connection.rollback();
+				return 0;
+			}
+			connection.commit();
+
+			return bachExecution.length;
+
+		} catch (SQLException e) {
+			LOGGER.error("Couldn't execute statement : " + INSERT_TOKEN_PORT_STATEMENT, e);
+			try {
+				if (connection != null) {
+					connection.rollback();
+				}
+			} catch (SQLException e1) {
+				LOGGER.error("Couldn't rollback transaction.", e1);
+			}
+		} finally {
+			close(preparedStatement, connection);
+		}
+		return 0;
+
+	}
+
 	public void updateTokenPort(Token token) throws Exception {
 
 		if (token == null || token.getTokenId() == null || token.getPort() == null) {
@@ -296,8 +353,8 @@ public class TokenDataStore {
 
 			connection = getConnection();
 			connection.setAutoCommit(false);
+			preparedStatement = connection.prepareStatement(DELETE_TOKEN_PORT_STATEMENT_BY_TOKEN);
 			for (Token token : tokens) {
-				preparedStatement = connection.prepareStatement(DELETE_TOKEN_PORT_STATEMENT_BY_TOKEN);
 				preparedStatement.setString(1, token.getTokenId());
 				preparedStatement.addBatch();
 			}
@@ -0,0 +1,72 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+public class TestAdaptiveWindow {
+
+	private static final int PACKET_SIZE = 32 * 1024;
+	private static final int INITIAL_WINDOW_SIZE = 256 * 1024;
+	private static final int MAX_WINDOW_SIZE = 16 * 1024 * 1024;
+
+	@Test
+	public void testWindowGrowsWhenItLimitsThroughput() {
+		// 100 ms round trip, 100 MB/s link: the window should reach about 20 MB
+		AdaptiveWindow adaptiveWindow = new AdaptiveWindow(INITIAL_WINDOW_SIZE, MAX_WINDOW_SIZE, 0);
+		long received = simulate(adaptiveWindow, 50, 100 * 1000, 5000);
+
+		assertEquals(MAX_WINDOW_SIZE, adaptiveWindow.getWindowSize());
+		assertTrue(adaptiveWindow.getRoundTripTime() >= 100 && adaptiveWindow.getRoundTripTime() < 110);
+		// Fixed at the initial size it would be 256 KB per round trip
+		assertTrue(received > 20 * INITIAL_WINDOW_SIZE * 5000L / 100);
+	}
+
+	@Test
+	public void testWindowKeepsSizeWhenLinkLimitsThroughput() {
+		// 2 ms round trip, 10 MB/s link: 256 KB is already above the 20 KB in flight
+		AdaptiveWindow adaptiveWindow = new AdaptiveWindow(INITIAL_WINDOW_SIZE, MAX_WINDOW_SIZE, 0);
+		simulate(adaptiveWindow, 1, 10 * 1000, 5000);
+
+		assertTrue(adaptiveWindow.getWindowSize() <= 2 * INITIAL_WINDOW_SIZE);
+	}
+
+	/**
+	 * Runs a sender that sends packets while it has window and link capacity
+	 * left, over a link with the given one way delay and bytes per millisecond.
+	 *
+	 * @return bytes received.
+	 */
+	private long simulate(AdaptiveWindow adaptiveWindow, int oneWayDelay, int bytesPerMillisecond, int duration) {
+		LinkedList<long[]> packetsInFlight = new LinkedList<long[]>();
+		LinkedList<long[]> adjustsInFlight = new LinkedList<long[]>();
+		long senderWindow = INITIAL_WINDOW_SIZE;
+		int receiverWindow = INITIAL_WINDOW_SIZE;
+		long received = 0;
+		for (long now = 0; now < duration; now++) {
+			while (!adjustsInFlight.isEmpty() && adjustsInFlight.getFirst()[0] <= now) {
+				senderWindow += adjustsInFlight.removeFirst()[1];
+			}
+			long linkCapacity = bytesPerMillisecond;
+			while (senderWindow >= PACKET_SIZE && linkCapacity >= PACKET_SIZE) {
+				packetsInFlight.add(new long[] { now + oneWayDelay, PACKET_SIZE });
+				senderWindow -= PACKET_SIZE;
+				linkCapacity -= PACKET_SIZE;
+			}
+			while (!packetsInFlight.isEmpty() && packetsInFlight.getFirst()[0] <= now) {
+				int len = (int) packetsInFlight.removeFirst()[1];
+				receiverWindow -= len;
+				received += len;
+				int adjust = adaptiveWindow.consume(len, receiverWindow, now);
+				if (adjust > 0) {
+					receiverWindow += adjust;
+					adjustsInFlight.add(new long[] { now + oneWayDelay, adjust });
+				}
+			}
+		}
+		return received;
+	}
+
+}
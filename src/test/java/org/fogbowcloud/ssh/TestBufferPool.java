@@ -0,0 +1,34 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestBufferPool {
+
+	@Test
+	public void testReleasedBuffersAreReused() {
+		BufferPool bufferPool = new BufferPool(1024, 1);
+		byte[] first = bufferPool.acquire(100);
+		byte[] second = bufferPool.acquire(1024);
+		assertEquals(1024, first.length);
+
+		bufferPool.release(first);
+		bufferPool.release(second);
+		assertEquals(1, bufferPool.getPooledBuffers());
+		assertSame(first, bufferPool.acquire(10));
+		assertEquals(0, bufferPool.getPooledBuffers());
+	}
+
+	@Test
+	public void testOtherSizesAreNotPooled() {
+		BufferPool bufferPool = new BufferPool(1024, 4);
+		byte[] large = bufferPool.acquire(2048);
+		assertEquals(2048, large.length);
+
+		bufferPool.release(large);
+		bufferPool.release(new byte[10]);
+		assertEquals(0, bufferPool.getPooledBuffers());
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.sshd.common.Cipher;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.cipher.AES128CTR;
+import org.apache.sshd.common.cipher.AES256CBC;
+import org.apache.sshd.common.cipher.BlowfishCBC;
+import org.junit.Test;
+
+public class TestCopyFreeCipher {
+
+	@Test
+	public void testSameOutputAsLibraryCiphers() throws Exception {
+		List<NamedFactory<Cipher>> libraryFactories = new ArrayList<NamedFactory<Cipher>>();
+		libraryFactories.add(new AES128CTR.Factory());
+		libraryFactories.add(new AES256CBC.Factory());
+		libraryFactories.add(new BlowfishCBC.Factory());
+		List<NamedFactory<Cipher>> copyFreeFactories = CopyFreeCipher.replaceAesCiphers(libraryFactories);
+
+		assertTrue(copyFreeFactories.get(0) instanceof CopyFreeCipher.Factory);
+		assertTrue(copyFreeFactories.get(1) instanceof CopyFreeCipher.Factory);
+		assertSame(libraryFactories.get(2), copyFreeFactories.get(2));
+
+		byte[] key = new byte[32];
+		byte[] iv = new byte[16];
+		Arrays.fill(key, (byte) 7);
+		Arrays.fill(iv, (byte) 3);
+		for (int i = 0; i < 2; i++) {
+			Cipher libraryCipher = libraryFactories.get(i).create();
+			Cipher copyFreeCipher = copyFreeFactories.get(i).create();
+			libraryCipher.init(Cipher.Mode.Encrypt, key, iv);
+			copyFreeCipher.init(Cipher.Mode.Encrypt, key, iv);
+			for (int packet = 0; packet < 3; packet++) {
+				byte[] expected = new byte[64 + packet * 16];
+				Arrays.fill(expected, (byte) packet);
+				byte[] actual = expected.clone();
+				libraryCipher.update(expected, 16, expected.length - 16);
+				copyFreeCipher.update(actual, 16, actual.length - 16);
+				assertArrayEquals(expected, actual);
+			}
+		}
+	}
+
+}
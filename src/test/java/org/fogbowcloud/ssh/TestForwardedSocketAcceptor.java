@@ -0,0 +1,84 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.util.Readable;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class TestForwardedSocketAcceptor {
+
+	private NioWorkerPool nioWorkerPool = new NioWorkerPool(2);
+	private ForwardedSocketAcceptor acceptor;
+
+	@After
+	public void tearDown() {
+		if (acceptor != null) {
+			acceptor.close(true);
+		}
+		nioWorkerPool.shutdown();
+	}
+
+	@Test
+	public void testSuspendAndResumeRead() throws Exception {
+		final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+		final BlockingQueue<ForwardedSocketSession> sessions = new LinkedBlockingQueue<ForwardedSocketSession>();
+		IoHandler handler = new IoHandler() {
+			@Override
+			public void sessionCreated(IoSession session) {
+				sessions.add((ForwardedSocketSession) session);
+			}
+
+			@Override
+			public void sessionClosed(IoSession session) {
+			}
+
+			@Override
+			public void exceptionCaught(IoSession session, Throwable cause) {
+			}
+
+			@Override
+			public void messageReceived(IoSession session, Readable message) {
+				byte[] data = new byte[message.available()];
+				message.getRawBytes(data, 0, data.length);
+				((ForwardedSocketSession) session).suspendRead();
+				messages.add(new String(data));
+			}
+		};
+		FactoryManager manager = Mockito.mock(FactoryManager.class);
+		Mockito.when(manager.getProperties()).thenReturn(new HashMap<String, String>());
+		acceptor = new ForwardedSocketAcceptor(manager, handler, nioWorkerPool.getGroup());
+		acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+		InetSocketAddress address = (InetSocketAddress) acceptor.getBoundAddresses().iterator().next();
+
+		Socket socket = new Socket("127.0.0.1", address.getPort());
+		OutputStream out = socket.getOutputStream();
+		ForwardedSocketSession session = sessions.poll(5, TimeUnit.SECONDS);
+		assertNotNull(session);
+		out.write("first".getBytes());
+		out.flush();
+		assertEquals("first", messages.poll(5, TimeUnit.SECONDS));
+		assertTrue(session.isReadSuspended());
+
+		out.write("second".getBytes());
+		out.flush();
+		assertNull(messages.poll(300, TimeUnit.MILLISECONDS));
+
+		session.resumeRead();
+		assertEquals("second", messages.poll(5, TimeUnit.SECONDS));
+		socket.close();
+	}
+
+}
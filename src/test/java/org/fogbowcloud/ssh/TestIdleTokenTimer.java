@@ -0,0 +1,141 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fogbowcloud.ssh.model.Token;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestIdleTokenTimer {
+
+	private static final long TICK = 1000L;
+	private static final int TICKS_PER_WHEEL = 8;
+	private static final long START = 1000000L;
+
+	private List<String> expiredTokens;
+	private IdleTokenTimer timer;
+
+	@Before
+	public void setup() {
+		expiredTokens = new ArrayList<String>();
+		timer = new IdleTokenTimer(TICK, TICKS_PER_WHEEL, new IdleTokenTimer.ExpirationHandler() {
+			@Override
+			public void onExpired(TunnelServer tunnelServer, String tokenId) {
+				expiredTokens.add(tokenId);
+			}
+		}, START);
+	}
+
+	@Test
+	public void testExpireWhenDue() {
+		timer.schedule(null, "tokenA", 3000L, START);
+		timer.schedule(null, "tokenB", 5000L, START);
+
+		timer.expireTimeouts(START + 2999L);
+		assertTrue(expiredTokens.isEmpty());
+
+		timer.expireTimeouts(START + 3000L);
+		assertEquals(1, expiredTokens.size());
+		assertEquals("tokenA", expiredTokens.get(0));
+		assertFalse(timer.isScheduled(null, "tokenA"));
+
+		timer.expireTimeouts(START + 5000L);
+		assertEquals(2, expiredTokens.size());
+		assertEquals(0, timer.size());
+	}
+
+	@Test
+	public void testExpireAfterManyRounds() {
+		long delay = TICK * TICKS_PER_WHEEL * 3 + TICK;
+		timer.schedule(null, "tokenA", delay, START);
+
+		timer.expireTimeouts(START + delay - TICK);
+		assertTrue(expiredTokens.isEmpty());
+
+		timer.expireTimeouts(START + delay);
+		assertEquals(1, expiredTokens.size());
+	}
+
+	@Test
+	public void testCancel() {
+		timer.schedule(null, "tokenA", 3000L, START);
+		assertTrue(timer.cancel(null, "tokenA"));
+		assertFalse(timer.cancel(null, "tokenA"));
+
+		timer.expireTimeouts(START + 10000L);
+		assertTrue(expiredTokens.isEmpty());
+	}
+
+	@Test
+	public void testRescheduleReplacesTimeout() {
+		timer.schedule(null, "tokenA", 3000L, START);
+		timer.schedule(null, "tokenA", 6000L, START + 1000L);
+
+		timer.expireTimeouts(START + 3000L);
+		assertTrue(expiredTokens.isEmpty());
+
+		timer.expireTimeouts(START + 7000L);
+		assertEquals(1, expiredTokens.size());
+	}
+
+	@Test
+	public void testTunnelServerSchedulesNewTokens() {
+		TunnelServer tunnelServer = new TunnelServer("10.0.0.10", 10, 10000, 10001, 3000L, "/path",
+				new ArrayList<Token>());
+		tunnelServer.setIdleTokenTimer(timer);
+
+		Token token = tunnelServer.createPort("tokenA");
+		assertTrue(timer.isScheduled(tunnelServer, "tokenA"));
+		assertTrue(token.getLastIdleCheck() > 0);
+
+		tunnelServer.releasePort(token.getPort());
+		assertFalse(timer.isScheduled(tunnelServer, "tokenA"));
+	}
+
+	@Test
+	public void testLosingServerReleaseKeepsOwnerTimeout() {
+		TunnelServer owner = new TunnelServer("10.0.0.10", 10, 10000, 10001, 3000L, "/path",
+				new ArrayList<Token>());
+		TunnelServer loser = new TunnelServer("10.0.0.10", 11, 10002, 10003, 3000L, "/path",
+				new ArrayList<Token>());
+		owner.setIdleTokenTimer(timer);
+		loser.setIdleTokenTimer(timer);
+
+		// Both servers got a port for the same token, the loser gives its port back
+		owner.createPort("tokenA");
+		Token lost = loser.createPort("tokenA");
+		loser.releasePort(lost.getPort());
+
+		assertTrue(timer.isScheduled(owner, "tokenA"));
+		assertFalse(timer.isScheduled(loser, "tokenA"));
+		assertEquals(1, timer.size());
+	}
+
+	@Test
+	public void testSameTokenOnTwoServersExpiresOnEach() {
+		final List<TunnelServer> expiredServers = new ArrayList<TunnelServer>();
+		timer = new IdleTokenTimer(TICK, TICKS_PER_WHEEL, new IdleTokenTimer.ExpirationHandler() {
+			@Override
+			public void onExpired(TunnelServer tunnelServer, String tokenId) {
+				expiredServers.add(tunnelServer);
+			}
+		}, START);
+		TunnelServer first = new TunnelServer("10.0.0.10", 10, 10000, 10001, 3000L, "/path",
+				new ArrayList<Token>());
+		TunnelServer second = new TunnelServer("10.0.0.10", 11, 10002, 10003, 3000L, "/path",
+				new ArrayList<Token>());
+		timer.schedule(first, "tokenA", 3000L, START);
+		timer.schedule(second, "tokenA", 3000L, START);
+		assertFalse(timer.cancel(null, "tokenA"));
+
+		timer.expireTimeouts(START + 3000L);
+		assertEquals(2, expiredServers.size());
+		assertTrue(expiredServers.contains(first));
+		assertTrue(expiredServers.contains(second));
+		assertEquals(0, timer.size());
+	}
+
+}
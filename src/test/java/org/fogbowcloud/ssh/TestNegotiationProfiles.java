@@ -0,0 +1,52 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.NamedFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNegotiationProfiles {
+
+	private SshServer sshServer;
+
+	@Before
+	public void setup() {
+		sshServer = SshServer.setUpDefaultServer();
+	}
+
+	@Test
+	public void testThroughputOffersOnlyFastAlgorithms() {
+		NegotiationProfiles.apply(NegotiationProfiles.THROUGHPUT, sshServer);
+
+		assertEquals(Arrays.asList("aes128-ctr", "aes256-ctr", "aes192-ctr"),
+				NamedFactory.Utils.getNameList(sshServer.getCipherFactories()));
+		assertEquals(Arrays.asList("hmac-sha2-256", "hmac-sha1"),
+				NamedFactory.Utils.getNameList(sshServer.getMacFactories()));
+		assertEquals("ecdh-sha2-nistp256", sshServer.getKeyExchangeFactories().get(0).getName());
+	}
+
+	@Test
+	public void testCompatAddsGroup14AndDefaultRestoresLists() {
+		SshServer defaults = SshServer.setUpDefaultServer();
+		NegotiationProfiles.apply(NegotiationProfiles.COMPAT, sshServer);
+		assertTrue(NamedFactory.Utils.getNameList(sshServer.getKeyExchangeFactories()).contains(
+				"diffie-hellman-group14-sha1"));
+
+		NegotiationProfiles.apply(NegotiationProfiles.THROUGHPUT, sshServer);
+		NegotiationProfiles.apply(null, sshServer);
+		assertEquals(NamedFactory.Utils.getNameList(defaults.getCipherFactories()),
+				NamedFactory.Utils.getNameList(sshServer.getCipherFactories()));
+		assertEquals(NamedFactory.Utils.getNameList(defaults.getKeyExchangeFactories()),
+				NamedFactory.Utils.getNameList(sshServer.getKeyExchangeFactories()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownProfile() {
+		NegotiationProfiles.apply("fastest", sshServer);
+	}
+
+}
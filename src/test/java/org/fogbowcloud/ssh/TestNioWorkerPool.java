@@ -0,0 +1,59 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestNioWorkerPool {
+
+	@Test
+	public void testParseNioWorkers() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		assertEquals(2 * cores, NioWorkerPool.parseNioWorkers(null));
+		assertEquals(2 * cores, NioWorkerPool.parseNioWorkers(""));
+		assertEquals(3 * cores, NioWorkerPool.parseNioWorkers("3x"));
+		assertEquals(8, NioWorkerPool.parseNioWorkers(" 8 "));
+	}
+
+	@Test
+	public void testCompletionHandlersRunOnPool() throws Exception {
+		NioWorkerPool nioWorkerPool = new NioWorkerPool(2);
+		assertEquals(0, nioWorkerPool.getQueueDepth());
+		assertEquals(0, nioWorkerPool.getCompletedTasks());
+		assertSame(nioWorkerPool.getGroup(), nioWorkerPool.getGroup());
+
+		AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(nioWorkerPool.getGroup());
+		serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+		final CountDownLatch accepted = new CountDownLatch(1);
+		final String[] threadName = new String[1];
+		serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+			@Override
+			public void completed(AsynchronousSocketChannel channel, Void attachment) {
+				threadName[0] = Thread.currentThread().getName();
+				accepted.countDown();
+			}
+
+			@Override
+			public void failed(Throwable cause, Void attachment) {
+			}
+		});
+		Socket socket = new Socket("127.0.0.1", ((InetSocketAddress) serverChannel.getLocalAddress()).getPort());
+		try {
+			assertTrue(accepted.await(5, TimeUnit.SECONDS));
+			assertTrue(threadName[0].startsWith("nio-worker-"));
+		} finally {
+			socket.close();
+			serverChannel.close();
+			nioWorkerPool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.fogbowcloud.ssh.model.Token;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestPlacementStrategies {
+
+	private TunnelServer tunnelServerA;
+	private TunnelServer tunnelServerB;
+	private TunnelServer tunnelServerC;
+	private List<TunnelServer> tunnelServers;
+
+	@Before
+	public void setup() {
+		tunnelServerA = newTunnelServer(10, 10000);
+		tunnelServerB = newTunnelServer(11, 10002);
+		tunnelServerC = newTunnelServer(12, 10004);
+		tunnelServers = new ArrayList<TunnelServer>();
+		tunnelServers.add(tunnelServerA);
+		tunnelServers.add(tunnelServerB);
+		tunnelServers.add(tunnelServerC);
+
+		tunnelServerA.createPort("tokenA");
+		tunnelServerA.createPort("tokenB");
+		tunnelServerB.createPort("tokenC");
+	}
+
+	@Test
+	public void testCreateByName() throws Exception {
+		assertTrue(PlacementStrategies.create(null) instanceof PlacementStrategies.FirstFit);
+		assertTrue(PlacementStrategies.create("least_tokens") instanceof PlacementStrategies.LeastTokens);
+		assertTrue(PlacementStrategies.create("least_bytes") instanceof PlacementStrategies.LeastBytes);
+		assertTrue(PlacementStrategies.create(" spread ") instanceof PlacementStrategies.Spread);
+		assertTrue(PlacementStrategies.create(PlacementStrategies.FirstFit.class.getName())
+				instanceof PlacementStrategies.FirstFit);
+	}
+
+	@Test
+	public void testFirstFit() {
+		PlacementStrategy strategy = new PlacementStrategies.FirstFit();
+		assertSame(tunnelServerB, strategy.select(tunnelServers, true));
+		tunnelServerB.createPort("tokenD");
+		assertSame(tunnelServerC, strategy.select(tunnelServers, true));
+	}
+
+	@Test
+	public void testLeastTokens() {
+		PlacementStrategy strategy = new PlacementStrategies.LeastTokens();
+		assertSame(tunnelServerC, strategy.select(tunnelServers, true));
+		tunnelServerC.createPort("tokenD");
+		assertSame(tunnelServerB, strategy.select(tunnelServers, true));
+	}
+
+	@Test
+	public void testLeastBytesBreaksTiesByTokens() {
+		PlacementStrategy strategy = new PlacementStrategies.LeastBytes();
+		assertSame(tunnelServerC, strategy.select(tunnelServers, true));
+	}
+
+	@Test
+	public void testSpread() {
+		PlacementStrategy strategy = new PlacementStrategies.Spread();
+		assertSame(tunnelServerC, strategy.select(tunnelServers, true));
+		tunnelServerC.createPort("tokenD");
+		assertNull(strategy.select(tunnelServers, true));
+		TunnelServer selected = strategy.select(tunnelServers, false);
+		assertTrue(selected == tunnelServerB || selected == tunnelServerC);
+	}
+
+	@Test
+	public void testSpreadWhileTunnelServersAreRemoved() {
+		final List<TunnelServer> liveTunnelServers = new CopyOnWriteArrayList<TunnelServer>();
+		TunnelServer removing = Mockito.spy(tunnelServerA);
+		liveTunnelServers.add(removing);
+		liveTunnelServers.add(tunnelServerB);
+		liveTunnelServers.add(tunnelServerC);
+		// The other servers are removed while the strategy looks at the first one
+		Mockito.doAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				liveTunnelServers.remove(tunnelServerB);
+				liveTunnelServers.remove(tunnelServerC);
+				return true;
+			}
+		}).when(removing).isServerBusy();
+
+		assertSame(tunnelServerC, new PlacementStrategies.Spread().select(liveTunnelServers, false));
+	}
+
+	@Test
+	public void testTrafficMeterRate() {
+		TrafficMeter trafficMeter = new TrafficMeter(1000L);
+		trafficMeter.record(3000L);
+		assertEquals(0L, trafficMeter.getBytesPerSecond(1500L));
+		trafficMeter.record(3000L);
+		assertEquals(3000L, trafficMeter.getBytesPerSecond(3000L));
+		assertEquals(3000L, trafficMeter.getBytesPerSecond(3500L));
+		assertEquals(0L, trafficMeter.getBytesPerSecond(4000L));
+		assertEquals(6000L, trafficMeter.getTransferredBytes());
+	}
+
+	private TunnelServer newTunnelServer(int sshTunnelPort, int lowerPort) {
+		return new TunnelServer("10.0.0.10", sshTunnelPort, lowerPort, lowerPort + 1, 100000L, "/path",
+				new ArrayList<Token>());
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestPortAllocator {
+
+	private int lowerPort = 10000;
+	private int higherPort = 10004;
+
+	@Test
+	public void testAllocateLowestFreePort() {
+		PortAllocator allocator = new PortAllocator(lowerPort, higherPort);
+
+		assertEquals(5, allocator.getFreePorts());
+		assertEquals(Integer.valueOf(10000), allocator.allocate());
+		assertEquals(Integer.valueOf(10001), allocator.allocate());
+		assertEquals(Integer.valueOf(10002), allocator.allocate());
+		assertEquals(2, allocator.getFreePorts());
+
+		assertTrue(allocator.free(10001));
+		assertEquals(3, allocator.getFreePorts());
+		assertEquals(Integer.valueOf(10001), allocator.allocate());
+		assertEquals(Integer.valueOf(10003), allocator.allocate());
+	}
+
+	@Test
+	public void testAllocateWhenBusy() {
+		PortAllocator allocator = new PortAllocator(lowerPort, higherPort);
+		for (int port = lowerPort; port <= higherPort; port++) {
+			assertEquals(Integer.valueOf(port), allocator.allocate());
+		}
+
+		assertEquals(0, allocator.getFreePorts());
+		assertNull(allocator.allocate());
+	}
+
+	@Test
+	public void testReserveSkipsTakenPorts() {
+		PortAllocator allocator = new PortAllocator(lowerPort, higherPort);
+
+		assertTrue(allocator.reserve(10000));
+		assertTrue(allocator.reserve(10001));
+		assertTrue(allocator.reserve(10003));
+		assertFalse(allocator.reserve(10003));
+		assertFalse(allocator.reserve(higherPort + 1));
+
+		assertEquals(2, allocator.getFreePorts());
+		assertEquals(Integer.valueOf(10002), allocator.allocate());
+		assertEquals(Integer.valueOf(10004), allocator.allocate());
+		assertNull(allocator.allocate());
+	}
+
+	@Test
+	public void testFreeUnknownPort() {
+		PortAllocator allocator = new PortAllocator(lowerPort, higherPort);
+
+		assertFalse(allocator.free(10000));
+		assertFalse(allocator.free(lowerPort - 1));
+		assertEquals(5, allocator.getFreePorts());
+	}
+
+}
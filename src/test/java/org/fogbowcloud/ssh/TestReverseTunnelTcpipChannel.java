@@ -0,0 +1,455 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.ClientChannel;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.future.DefaultCloseFuture;
+import org.apache.sshd.common.future.SshFutureListener;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestReverseTunnelTcpipChannel {
+
+	private static final int WINDOW_SIZE = 64 * 1024;
+	private static final int MAX_BUFFERED_BYTES = 32 * 1024;
+	private static final int CHUNK = 16 * 1024;
+	private static final int COALESCING_DELAY = 1000;
+
+	private Map<String, Integer> properties = new HashMap<String, Integer>();
+	private Session session;
+	private ScheduledExecutorService timer;
+	private IoSession serverSession;
+	private List<Buffer> packets = new ArrayList<Buffer>();
+	private List<IoWriteFuture> writes = new ArrayList<IoWriteFuture>();
+	private List<SshFutureListener<IoWriteFuture>> writeListeners = new ArrayList<SshFutureListener<IoWriteFuture>>();
+
+	@Before
+	public void setup() throws Exception {
+		properties.put(FactoryManager.WINDOW_SIZE, WINDOW_SIZE);
+		properties.put(ForwardingSettings.MAX_BUFFERED_BYTES, MAX_BUFFERED_BYTES);
+		session = Mockito.mock(Session.class);
+		Mockito.when(session.getIntProperty(anyString(), anyInt())).thenAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) {
+				Integer value = properties.get(invocation.getArguments()[0]);
+				return value != null ? value : (Integer) invocation.getArguments()[1];
+			}
+		});
+		Answer<Buffer> createBuffer = new Answer<Buffer>() {
+			@Override
+			public Buffer answer(InvocationOnMock invocation) {
+				Buffer buffer = new Buffer();
+				buffer.putByte((Byte) invocation.getArguments()[0]);
+				return buffer;
+			}
+		};
+		Mockito.when(session.createBuffer(Mockito.anyByte())).thenAnswer(createBuffer);
+		Mockito.when(session.createBuffer(Mockito.anyByte(), anyInt())).thenAnswer(createBuffer);
+		Answer<IoWriteFuture> writePacket = new Answer<IoWriteFuture>() {
+			@Override
+			public IoWriteFuture answer(InvocationOnMock invocation) {
+				packets.add((Buffer) invocation.getArguments()[0]);
+				return Mockito.mock(IoWriteFuture.class);
+			}
+		};
+		Mockito.when(session.writePacket(any(Buffer.class))).thenAnswer(writePacket);
+		Mockito.when(session.writePacket(any(Buffer.class), anyLong(), any(TimeUnit.class))).thenAnswer(writePacket);
+		timer = Mockito.mock(ScheduledExecutorService.class);
+		FactoryManager manager = Mockito.mock(FactoryManager.class);
+		Mockito.when(manager.getScheduledExecutorService()).thenReturn(timer);
+		Mockito.when(manager.getProperties()).thenReturn(new HashMap<String, String>());
+		Mockito.when(session.getFactoryManager()).thenReturn(manager);
+		serverSession = mockServerSession(IoSession.class);
+	}
+
+	private <T extends IoSession> T mockServerSession(Class<T> sessionClass) throws Exception {
+		T serverSession = Mockito.mock(sessionClass);
+		Mockito.when(serverSession.getRemoteAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 40000));
+		Mockito.when(serverSession.getLocalAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 50000));
+		DefaultCloseFuture closed = new DefaultCloseFuture(null);
+		closed.setClosed();
+		Mockito.when(serverSession.close(anyBoolean())).thenReturn(closed);
+		Mockito.when(serverSession.write(any(Buffer.class))).thenAnswer(new Answer<IoWriteFuture>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public IoWriteFuture answer(InvocationOnMock invocation) {
+				IoWriteFuture future = Mockito.mock(IoWriteFuture.class);
+				Mockito.when(future.isWritten()).thenReturn(true);
+				Mockito.when(future.addListener(any(SshFutureListener.class))).thenAnswer(new Answer<IoWriteFuture>() {
+					@Override
+					public IoWriteFuture answer(InvocationOnMock invocation) {
+						writeListeners.add((SshFutureListener<IoWriteFuture>) invocation.getArguments()[0]);
+						return null;
+					}
+				});
+				writes.add(future);
+				return future;
+			}
+		});
+		return serverSession;
+	}
+
+	@Test
+	public void testWindowWithheldWhileWritesToClientPending() throws Exception {
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(null, session, 0);
+
+		for (int i = 0; i < 4; i++) {
+			channel.doWriteData(new byte[CHUNK], 0, CHUNK);
+		}
+		assertEquals(4 * CHUNK, channel.getPendingWriteSize());
+		assertEquals(0, channel.getLocalWindow().getSize());
+		Mockito.verify(session, Mockito.never()).createBuffer(SshConstants.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+
+		writeListeners.get(0).operationComplete(writes.get(0));
+		assertEquals(0, channel.getLocalWindow().getSize());
+		writeListeners.get(1).operationComplete(writes.get(1));
+		assertEquals(2 * CHUNK, channel.getPendingWriteSize());
+		assertEquals(WINDOW_SIZE, channel.getLocalWindow().getSize());
+		Mockito.verify(session, Mockito.times(1)).createBuffer(SshConstants.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+	}
+
+	@Test
+	public void testWriteBufferReleasedOnceAfterClientWrite() throws Exception {
+		BufferPool pool = emptyPacketBufferPool();
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(Mockito.mock(ConnectionService.class), session, 0);
+
+		channel.doWriteData(new byte[CHUNK], 0, CHUNK);
+		byte[] array = writtenArray(0);
+		assertEquals(0, pool.getPooledBuffers());
+
+		writeListeners.get(0).operationComplete(writes.get(0));
+		assertEquals(1, pool.getPooledBuffers());
+		channel.close(true);
+		assertEquals(1, pool.getPooledBuffers());
+		assertSame(array, pool.acquire(CHUNK));
+		assertEquals(0, pool.getPooledBuffers());
+	}
+
+	@Test
+	public void testWriteBufferReleasedOnceWhenClosedWithWritePending() throws Exception {
+		BufferPool pool = emptyPacketBufferPool();
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(Mockito.mock(ConnectionService.class), session, 0);
+
+		channel.doWriteData(new byte[CHUNK], 0, CHUNK);
+		byte[] array = writtenArray(0);
+		channel.close(true);
+		Mockito.verify(serverSession).close(true);
+		// The client session may still be writing the array, so it stays out
+		// of the pool until the session fails the write
+		assertEquals(0, pool.getPooledBuffers());
+
+		Mockito.when(writes.get(0).isWritten()).thenReturn(false);
+		writeListeners.get(0).operationComplete(writes.get(0));
+		assertEquals(1, pool.getPooledBuffers());
+		assertSame(array, pool.acquire(CHUNK));
+		assertEquals(0, pool.getPooledBuffers());
+		assertEquals(0, channel.getPendingWriteSize());
+	}
+
+	@Test
+	public void testWithheldWindowRefilledOnlyAfterClientWriteSucceeds() throws Exception {
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(null, session, 0);
+
+		for (int i = 0; i < 4; i++) {
+			channel.doWriteData(new byte[CHUNK], 0, CHUNK);
+		}
+		assertEquals(4, writes.size());
+		assertEquals(0, channel.getLocalWindow().getSize());
+
+		writeListeners.get(0).operationComplete(writes.get(0));
+		assertEquals(0, channel.getLocalWindow().getSize());
+		// A failed write drains the pending bytes but gives no window back
+		Mockito.when(writes.get(1).isWritten()).thenReturn(false);
+		writeListeners.get(1).operationComplete(writes.get(1));
+		assertEquals(2 * CHUNK, channel.getPendingWriteSize());
+		assertEquals(0, channel.getLocalWindow().getSize());
+		Mockito.verify(session, Mockito.never()).createBuffer(SshConstants.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+
+		writeListeners.get(2).operationComplete(writes.get(2));
+		assertEquals(CHUNK, channel.getPendingWriteSize());
+		assertEquals(WINDOW_SIZE, channel.getLocalWindow().getSize());
+		Mockito.verify(session, Mockito.times(1)).createBuffer(SshConstants.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+	}
+
+	@Test
+	public void testSmallReadsCoalescedWhileSending() throws Exception {
+		properties.put(ForwardingSettings.COALESCING_DELAY, COALESCING_DELAY);
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(null, session, 0);
+		channel.open();
+		channel.handleOpenSuccess(7, WINDOW_SIZE, 32 * 1024, new Buffer());
+		packets.clear();
+
+		channel.writeData(new Buffer(new byte[100]));
+		assertEquals(1, packets.size());
+		for (int i = 0; i < 3; i++) {
+			channel.writeData(new Buffer(new byte[100]));
+		}
+		assertEquals(1, packets.size());
+
+		ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		Mockito.verify(timer).schedule(flush.capture(), Mockito.eq((long) COALESCING_DELAY),
+				Mockito.eq(TimeUnit.MILLISECONDS));
+		flush.getValue().run();
+		assertEquals(2, packets.size());
+		assertDataPacket(packets.get(0), 7, 100);
+		assertDataPacket(packets.get(1), 7, 300);
+		assertEquals(WINDOW_SIZE - 400, channel.getRemoteWindow().getSize());
+	}
+
+	@Test
+	public void testEarlyDataSentInOrderWhenOpened() throws Exception {
+		ReverseTunnelTcpipChannel channel = openingChannel();
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++) {
+			channel.writeData(new Buffer(data(written, 1000 * (i + 1))));
+		}
+		assertEquals(0, dataSent().length);
+
+		channel.handleOpenSuccess(7, WINDOW_SIZE, 32 * 1024, new Buffer());
+		assertArrayEquals(written.toByteArray(), dataSent());
+	}
+
+	@Test
+	public void testEarlyDataSuspendsAndResumesReads() throws Exception {
+		ForwardedSocketSession forwardedSession = mockServerSession(ForwardedSocketSession.class);
+		serverSession = forwardedSession;
+		ReverseTunnelTcpipChannel channel = openingChannel();
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		channel.writeData(new Buffer(data(written, MAX_BUFFERED_BYTES / 2)));
+		Mockito.verify(forwardedSession, Mockito.never()).suspendRead();
+		channel.writeData(new Buffer(data(written, MAX_BUFFERED_BYTES / 2)));
+		Mockito.verify(forwardedSession).suspendRead();
+		Mockito.verify(forwardedSession, Mockito.never()).resumeRead();
+
+		channel.handleOpenSuccess(7, WINDOW_SIZE, 32 * 1024, new Buffer());
+		Mockito.verify(forwardedSession).resumeRead();
+		assertArrayEquals(written.toByteArray(), dataSent());
+	}
+
+	@Test
+	public void testCloseWithEarlyDataQueuedLosesNothing() throws Exception {
+		ReverseTunnelTcpipChannel channel = openingChannel();
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		channel.writeData(new Buffer(data(written, 20000)));
+		channel.closeWhenFlushed();
+		assertFalse(channel.isClosing());
+		assertFalse(closeSent());
+
+		channel.handleOpenSuccess(7, WINDOW_SIZE, 32 * 1024, new Buffer());
+		assertArrayEquals(written.toByteArray(), dataSent());
+		assertTrue(closeSent());
+		assertTrue(channel.isClosing());
+	}
+
+	@Test
+	public void testAsyncUploadBeyondWindowSentBeforeClose() throws Exception {
+		ForwardedSocketSession forwardedSession = mockServerSession(ForwardedSocketSession.class);
+		serverSession = forwardedSession;
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.setStreaming(ClientChannel.Streaming.Async);
+		channel.init(null, session, 0);
+		channel.open();
+		channel.handleOpenSuccess(7, CHUNK, 8 * 1024, new Buffer());
+		packets.clear();
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		for (int i = 0; i < 4; i++) {
+			channel.writeData(new Buffer(data(written, CHUNK)));
+		}
+		channel.closeWhenFlushed();
+		assertEquals(CHUNK, dataSent().length);
+		assertFalse(closeSent());
+		assertFalse(channel.isClosing());
+
+		Buffer windowAdjust = new Buffer();
+		windowAdjust.putInt(CHUNK);
+		channel.handleWindowAdjust(windowAdjust);
+		assertEquals(2 * CHUNK, dataSent().length);
+		assertFalse(closeSent());
+
+		windowAdjust = new Buffer();
+		windowAdjust.putInt(4 * CHUNK);
+		channel.handleWindowAdjust(windowAdjust);
+		assertArrayEquals(written.toByteArray(), dataSent());
+		assertTrue(closeSent());
+		Mockito.verify(forwardedSession, Mockito.times(1)).resumeRead();
+	}
+
+	@Test(timeout = 10000)
+	public void testSuspendableSessionNeverWaitsForWindow() throws Exception {
+		ForwardedSocketSession forwardedSession = mockServerSession(ForwardedSocketSession.class);
+		serverSession = forwardedSession;
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.setStreaming(ClientChannel.Streaming.Sync);
+		channel.init(null, session, 0);
+		channel.open();
+		channel.handleOpenSuccess(7, CHUNK, 8 * 1024, new Buffer());
+		packets.clear();
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++) {
+			channel.writeData(new Buffer(data(written, CHUNK)));
+		}
+		assertEquals(ClientChannel.Streaming.Async, channel.getStreaming());
+		assertEquals(CHUNK, dataSent().length);
+		Mockito.verify(forwardedSession).suspendRead();
+	}
+
+	@Test
+	public void testDefaultSettingsPushBeyondWindowWithoutPinningWorker() throws Exception {
+		properties.remove(ForwardingSettings.MAX_BUFFERED_BYTES);
+		ForwardedSocketSession forwardedSession = mockServerSession(ForwardedSocketSession.class);
+		serverSession = forwardedSession;
+		final ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null,
+				new TrafficMeter());
+		channel.init(null, session, 0);
+		channel.open();
+		channel.handleOpenSuccess(7, CHUNK, 8 * 1024, new Buffer());
+		packets.clear();
+
+		// The only worker of the pool reads more than the window from the client
+		ExecutorService worker = Executors.newSingleThreadExecutor();
+		try {
+			final ByteArrayOutputStream written = new ByteArrayOutputStream();
+			final int reads = ForwardingSettings.DEFAULT_MAX_BUFFERED_BYTES / CHUNK + 1;
+			Future<?> upload = worker.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < reads; i++) {
+						channel.writeData(new Buffer(data(written, CHUNK)));
+					}
+					return null;
+				}
+			});
+			upload.get(5, TimeUnit.SECONDS);
+			assertTrue(worker.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return true;
+				}
+			}).get(5, TimeUnit.SECONDS));
+			assertEquals(CHUNK, dataSent().length);
+			Mockito.verify(forwardedSession).suspendRead();
+
+			Buffer windowAdjust = new Buffer();
+			windowAdjust.putInt(reads * CHUNK);
+			channel.handleWindowAdjust(windowAdjust);
+			assertArrayEquals(written.toByteArray(), dataSent());
+			Mockito.verify(forwardedSession, Mockito.times(2)).resumeRead();
+		} finally {
+			worker.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the packet buffer pool, emptied so that what the test releases
+	 *         to it can be counted.
+	 */
+	private static BufferPool emptyPacketBufferPool() {
+		BufferPool pool = ReverseTunnelTcpipChannel.getPacketBufferPool();
+		while (pool.getPooledBuffers() > 0) {
+			pool.acquire(pool.getBufferSize());
+		}
+		return pool;
+	}
+
+	private byte[] writtenArray(int write) {
+		ArgumentCaptor<Buffer> buffer = ArgumentCaptor.forClass(Buffer.class);
+		Mockito.verify(serverSession, Mockito.atLeast(write + 1)).write(buffer.capture());
+		return buffer.getAllValues().get(write).array();
+	}
+
+	private ReverseTunnelTcpipChannel openingChannel() throws Exception {
+		ReverseTunnelTcpipChannel channel = new ReverseTunnelTcpipChannel(serverSession, null, new TrafficMeter());
+		channel.init(null, session, 0);
+		channel.open();
+		packets.clear();
+		return channel;
+	}
+
+	/**
+	 * @return len bytes that continue the sequence already in written, which
+	 *         are appended to it.
+	 */
+	private static byte[] data(ByteArrayOutputStream written, int len) {
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte) ((written.size() + i) % 251);
+		}
+		written.write(data, 0, len);
+		return data;
+	}
+
+	/**
+	 * @return the payloads of the data packets sent so far, in order, checking
+	 *         that no data follows a channel close.
+	 */
+	private byte[] dataSent() {
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		boolean closed = false;
+		for (Buffer packet : packets) {
+			Buffer buffer = new Buffer(packet.array(), packet.rpos(), packet.available());
+			byte command = buffer.getByte();
+			if (command == SshConstants.SSH_MSG_CHANNEL_CLOSE) {
+				closed = true;
+			} else if (command == SshConstants.SSH_MSG_CHANNEL_DATA) {
+				assertFalse(closed);
+				buffer.getInt();
+				byte[] payload = buffer.getBytes();
+				sent.write(payload, 0, payload.length);
+			}
+		}
+		return sent.toByteArray();
+	}
+
+	private boolean closeSent() {
+		for (Buffer packet : packets) {
+			if (packet.array()[packet.rpos()] == SshConstants.SSH_MSG_CHANNEL_CLOSE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void assertDataPacket(Buffer packet, int recipient, int length) {
+		assertEquals(SshConstants.SSH_MSG_CHANNEL_DATA, packet.getByte());
+		assertEquals(recipient, packet.getInt());
+		assertEquals(length, packet.getInt());
+		assertEquals(length, packet.available());
+	}
+
+}
@@ -2,11 +2,19 @@ package org.fogbowcloud.ssh;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.IOUtils;
@@ -19,6 +27,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import fi.iki.elonen.NanoHTTPD.IHTTPSession;
 import fi.iki.elonen.NanoHTTPD.Method;
@@ -80,8 +90,56 @@ public class TestTunnelHttpServer {
 		assertEquals(lowerSshTunnelPort, tunnelServer.getSshTunnelPort());
 		assertEquals(lowerPort, tunnelServer.getLowerPort());
 		assertEquals(getMaxPort(tunnelServer.getLowerPort(), portsPerShhServer), tunnelServer.getHigherPort());
+		Mockito.verify(tunnelHttpServer).startTunnelServer(tunnelServer);
 		
 	}
+
+	@Test
+	public void testStandbyTunnelServers() throws Exception {
+
+		String inMemoryDs = "jdbc:sqlite:"+tempDataBaseFile;
+		
+		tokenDsMock = new TokenDataStore(inMemoryDs);
+		tunnelServerDsMock = new TunnelServerDataStore(inMemoryDs);
+		
+		tunnelHttpServer.setTokenDs(tokenDsMock);
+		tunnelHttpServer.setTunnelServerDs(tunnelServerDsMock);
+
+		tunnelHttpServer.setTunnelServers(new ArrayList<TunnelServer>());
+		tunnelHttpServer.setStandbyTunnelServersNumber(2);
+		waitForStandbyTunnelServers(2);
+
+		List<TunnelServer> standbyTunnelServers = tunnelHttpServer.getStandbyTunnelServers();
+		assertEquals(2, standbyTunnelServers.size());
+		assertTrue(tunnelHttpServer.getAllTunnelServers().isEmpty());
+		assertEquals(2, tunnelServerDsMock.getAllTunnelServers().size());
+		for (TunnelServer standbyTunnelServer : standbyTunnelServers) {
+			Mockito.verify(tunnelHttpServer).startTunnelServer(standbyTunnelServer);
+		}
+
+		IHTTPSession sessionMock = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMock).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA").when(sessionMock).getUri();
+		String responseString = returnResponseString(tunnelHttpServer.serve(sessionMock));
+
+		assertEquals(lowerPort + ":" + lowerSshTunnelPort, responseString);
+		assertEquals(1, tunnelHttpServer.getAllTunnelServers().size());
+		assertSame(standbyTunnelServers.get(0), tunnelHttpServer.getAllTunnelServers().get(0));
+
+		// The pool is refilled in the background
+		waitForStandbyTunnelServers(2);
+		Mockito.verify(tunnelHttpServer, Mockito.times(3)).startTunnelServer(Mockito.any(TunnelServer.class));
+
+	}
+	
+	private void waitForStandbyTunnelServers(int standbyTunnelServers) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (tunnelHttpServer.getStandbyTunnelServers().size() < standbyTunnelServers
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(standbyTunnelServers, tunnelHttpServer.getStandbyTunnelServers().size());
+	}
 	
 	@Test
 	public void testPostNewPort() throws Exception {
@@ -301,6 +359,287 @@ public class TestTunnelHttpServer {
 		
 	}
 	
+	@Test
+	public void testGetAllPortsByTokenPrefix() throws Exception {
+
+		String tokenId = "token01";
+		String[] tokenIds = new String[] { tokenId, tokenId + "-http", "token02", tokenId + "0",
+				tokenId + "-ftp" };
+
+		for (String id : tokenIds) {
+			IHTTPSession sessionMock = Mockito.mock(IHTTPSession.class);
+			Mockito.doReturn(Method.POST).when(sessionMock).getMethod();
+			Mockito.doReturn("localhost:2223/token/" + id).when(sessionMock).getUri();
+			tunnelHttpServer.serve(sessionMock);
+		}
+
+		IHTTPSession sessionGetAll = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.GET).when(sessionGetAll).getMethod();
+		Mockito.doReturn("localhost:2223/token/" + tokenId + "/all").when(sessionGetAll).getUri();
+
+		Response response = tunnelHttpServer.serve(sessionGetAll);
+		JSONObject ports = new JSONObject(returnResponseString(response));
+
+		assertEquals(3, ports.length());
+		assertEquals(10000, ports.getInt("ssh"));
+		assertEquals(10001, ports.getInt("http"));
+		assertEquals(10004, ports.getInt("ftp"));
+
+	}
+	
+	@Test
+	public void testDeletePort() throws Exception {
+
+		String tokenId = "token01";
+
+		IHTTPSession sessionMockPost = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockPost).getMethod();
+		Mockito.doReturn("localhost:2223/token/" + tokenId).when(sessionMockPost).getUri();
+		tunnelHttpServer.serve(sessionMockPost);
+
+		IHTTPSession sessionMockDelete = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.DELETE).when(sessionMockDelete).getMethod();
+		Mockito.doReturn("localhost:2223/token/" + tokenId + "/" + lowerPort).when(sessionMockDelete).getUri();
+
+		Response responseDelete = tunnelHttpServer.serve(sessionMockDelete);
+		assertEquals("OK", returnResponseString(responseDelete));
+		Mockito.verify(tokenDsMock).deleteTokenPort(Mockito.any(Token.class));
+
+		IHTTPSession sessionMockGet = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.GET).when(sessionMockGet).getMethod();
+		Mockito.doReturn("localhost:2223/token/" + tokenId).when(sessionMockGet).getUri();
+
+		Response responseGet = tunnelHttpServer.serve(sessionMockGet);
+		assertEquals("404 Port Not Found", returnResponseString(responseGet));
+		assertEquals(0, tunnelHttpServer.getAllTunnelServers().size());
+
+	}
+	
+	@Test
+	public void testPostBatchTokens() throws Exception {
+
+		String inMemoryDs = "jdbc:sqlite:"+tempDataBaseFile;
+		
+		tokenDsMock = new TokenDataStore(inMemoryDs);
+		tunnelServerDsMock = new TunnelServerDataStore(inMemoryDs);
+		
+		tunnelHttpServer.setTokenDs(tokenDsMock);
+		tunnelHttpServer.setTunnelServerDs(tunnelServerDsMock);
+
+		IHTTPSession sessionMockA = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockA).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA").when(sessionMockA).getUri();
+		tunnelHttpServer.serve(sessionMockA);
+
+		final String body = new JSONArray(new String[] { "tokenB", "tokenA", "tokenC", "tokenD" }).toString();
+		IHTTPSession sessionMockBatch = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockBatch).getMethod();
+		Mockito.doReturn("localhost:2223/tokens").when(sessionMockBatch).getUri();
+		Mockito.doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((Map<String, String>) invocation.getArguments()[0]).put("postData", body);
+				return null;
+			}
+		}).when(sessionMockBatch).parseBody(Mockito.<Map<String, String>> any());
+
+		Response response = tunnelHttpServer.serve(sessionMockBatch);
+		JSONObject ports = new JSONObject(returnResponseString(response));
+
+		assertEquals(4, ports.length());
+		assertEquals("10000:10", ports.getString("tokenA"));
+		assertEquals("10001:10", ports.getString("tokenB"));
+		assertEquals("10002:11", ports.getString("tokenC"));
+		assertEquals("10003:11", ports.getString("tokenD"));
+
+		List<Token> tokens = tokenDsMock.getAllTokenPorts();
+		assertEquals(4, tokens.size());
+		assertEquals(2, tunnelHttpServer.getAllTunnelServers().size());
+
+	}
+
+	@Test
+	public void testPostDoesNotUseTunnelServerRemovedAfterPlacement() throws Exception {
+
+		IHTTPSession sessionMockA = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockA).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA").when(sessionMockA).getUri();
+		assertEquals(lowerPort + ":" + lowerSshTunnelPort, returnResponseString(tunnelHttpServer.serve(sessionMockA)));
+		final TunnelServer removed = tunnelHttpServer.getAllTunnelServers().get(0);
+
+		// The last token of the chosen server is released right after placement
+		final IHTTPSession sessionMockDelete = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.DELETE).when(sessionMockDelete).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA/" + lowerPort).when(sessionMockDelete).getUri();
+		final PlacementStrategy firstFit = new PlacementStrategies.FirstFit();
+		tunnelHttpServer.setPlacementStrategy(new PlacementStrategy() {
+			private boolean released;
+
+			@Override
+			public TunnelServer select(List<TunnelServer> tunnelServers, boolean canCreateTunnelServer) {
+				TunnelServer selected = firstFit.select(tunnelServers, canCreateTunnelServer);
+				if (!released && selected == removed) {
+					released = true;
+					assertEquals(Response.Status.OK, tunnelHttpServer.serve(sessionMockDelete).getStatus());
+				}
+				return selected;
+			}
+		});
+
+		IHTTPSession sessionMockB = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockB).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenB").when(sessionMockB).getUri();
+		String[] port = returnResponseString(tunnelHttpServer.serve(sessionMockB)).split(":");
+
+		assertTrue(removed.isClosed());
+		assertEquals(0, removed.getActiveTokensNumber());
+		assertEquals(1, tunnelHttpServer.getAllTunnelServers().size());
+		TunnelServer owner = tunnelHttpServer.getAllTunnelServers().get(0);
+		assertNotSame(removed, owner);
+		assertEquals(Integer.valueOf(port[0]), owner.getPort("tokenB"));
+		assertEquals(String.valueOf(owner.getSshTunnelPort()), port[1]);
+
+	}
+
+	@Test
+	public void testPostBatchTokensReleasesPortsWhenNotSaved() throws Exception {
+
+		// The data store mock saves none of the new tokens
+		Mockito.doReturn(0).when(tokenDsMock).insertListOfTokenPort(Mockito.anyListOf(Token.class));
+
+		final String body = new JSONArray(new String[] { "tokenA", "tokenB", "tokenC" }).toString();
+		IHTTPSession sessionMockBatch = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockBatch).getMethod();
+		Mockito.doReturn("localhost:2223/tokens").when(sessionMockBatch).getUri();
+		Mockito.doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((Map<String, String>) invocation.getArguments()[0]).put("postData", body);
+				return null;
+			}
+		}).when(sessionMockBatch).parseBody(Mockito.<Map<String, String>> any());
+
+		Response response = tunnelHttpServer.serve(sessionMockBatch);
+		assertEquals(Response.Status.INTERNAL_ERROR, response.getStatus());
+		assertTrue(tunnelHttpServer.getAllTunnelServers().isEmpty());
+
+		IHTTPSession sessionMockGet = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.GET).when(sessionMockGet).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA").when(sessionMockGet).getUri();
+		assertEquals(Response.Status.NOT_FOUND, tunnelHttpServer.serve(sessionMockGet).getStatus());
+
+		// The ports are free again
+		IHTTPSession sessionMockPost = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockPost).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenB").when(sessionMockPost).getUri();
+		assertEquals(lowerPort + ":" + lowerSshTunnelPort,
+				returnResponseString(tunnelHttpServer.serve(sessionMockPost)));
+
+	}
+
+	@Test
+	public void testPostBatchTokensReleasesPortsWhenTunnelServerCreationFails() throws Exception {
+
+		// The first tunnel server starts, the second one finds its ssh port taken
+		Mockito.doReturn(true).doThrow(new IOException("Address already in use")).when(tunnelHttpServer)
+				.startTunnelServer(Mockito.any(TunnelServer.class));
+
+		final String body = new JSONArray(new String[] { "tokenA", "tokenB", "tokenC" }).toString();
+		IHTTPSession sessionMockBatch = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.POST).when(sessionMockBatch).getMethod();
+		Mockito.doReturn("localhost:2223/tokens").when(sessionMockBatch).getUri();
+		Mockito.doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((Map<String, String>) invocation.getArguments()[0]).put("postData", body);
+				return null;
+			}
+		}).when(sessionMockBatch).parseBody(Mockito.<Map<String, String>> any());
+
+		Response response = tunnelHttpServer.serve(sessionMockBatch);
+		assertEquals(Response.Status.INTERNAL_ERROR, response.getStatus());
+		Mockito.verify(tunnelHttpServer, Mockito.times(2)).startTunnelServer(Mockito.any(TunnelServer.class));
+		Mockito.verify(tokenDsMock, Mockito.never()).insertListOfTokenPort(Mockito.anyListOf(Token.class));
+		assertTrue(tunnelHttpServer.getAllTunnelServers().isEmpty());
+
+		for (String tokenId : new String[] { "tokenA", "tokenB" }) {
+			IHTTPSession sessionMockGet = Mockito.mock(IHTTPSession.class);
+			Mockito.doReturn(Method.GET).when(sessionMockGet).getMethod();
+			Mockito.doReturn("localhost:2223/token/" + tokenId).when(sessionMockGet).getUri();
+			assertEquals(Response.Status.NOT_FOUND, tunnelHttpServer.serve(sessionMockGet).getStatus());
+		}
+
+	}
+
+	@Test
+	public void testDeletePortAlreadyReleasedByOthers() throws Exception {
+
+		// The token is gone by the time its port is released, e.g. it expired
+		TunnelServer tunnelServer = Mockito.mock(TunnelServer.class);
+		Mockito.doReturn(Arrays.asList(new Token("tokenA", lowerPort, lowerSshTunnelPort)))
+				.when(tunnelServer).getTokens();
+		Mockito.doReturn(lowerPort).when(tunnelServer).getPort("tokenA");
+		Mockito.doReturn(null).when(tunnelServer).releasePort(lowerPort);
+		tunnelHttpServer.setTunnelServers(Arrays.asList(tunnelServer));
+
+		IHTTPSession sessionMockDelete = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.DELETE).when(sessionMockDelete).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA/" + lowerPort).when(sessionMockDelete).getUri();
+		Response response = tunnelHttpServer.serve(sessionMockDelete);
+
+		assertEquals(Response.Status.METHOD_NOT_ALLOWED, response.getStatus());
+		Mockito.verify(tokenDsMock, Mockito.never()).deleteTokenPort(Mockito.any(Token.class));
+
+	}
+
+	@Test
+	public void testDeleteBatchTokens() throws Exception {
+
+		String inMemoryDs = "jdbc:sqlite:"+tempDataBaseFile;
+		
+		tokenDsMock = new TokenDataStore(inMemoryDs);
+		tunnelServerDsMock = new TunnelServerDataStore(inMemoryDs);
+		
+		tunnelHttpServer.setTokenDs(tokenDsMock);
+		tunnelHttpServer.setTunnelServerDs(tunnelServerDsMock);
+
+		for (String tokenId : new String[] { "tokenA", "tokenA-1", "tokenA-2", "tokenB", "tokenC" }) {
+			IHTTPSession sessionMock = Mockito.mock(IHTTPSession.class);
+			Mockito.doReturn(Method.POST).when(sessionMock).getMethod();
+			Mockito.doReturn("localhost:2223/token/" + tokenId).when(sessionMock).getUri();
+			tunnelHttpServer.serve(sessionMock);
+		}
+		assertEquals(5, tokenDsMock.getAllTokenPorts().size());
+		assertEquals(3, tunnelHttpServer.getAllTunnelServers().size());
+
+		IHTTPSession sessionMockPrefix = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.DELETE).when(sessionMockPrefix).getMethod();
+		Mockito.doReturn("localhost:2223/token/tokenA/all").when(sessionMockPrefix).getUri();
+
+		JSONArray released = new JSONArray(returnResponseString(tunnelHttpServer.serve(sessionMockPrefix)));
+		assertEquals(3, released.length());
+		assertEquals(2, tunnelHttpServer.getAllTunnelServers().size());
+		assertEquals(2, tokenDsMock.getAllTokenPorts().size());
+
+		byte[] body = new JSONArray(new String[] { "tokenB", "tokenC", "tokenZ" }).toString().getBytes("utf-8");
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("content-length", String.valueOf(body.length));
+		IHTTPSession sessionMockBatch = Mockito.mock(IHTTPSession.class);
+		Mockito.doReturn(Method.DELETE).when(sessionMockBatch).getMethod();
+		Mockito.doReturn("localhost:2223/tokens").when(sessionMockBatch).getUri();
+		Mockito.doReturn(headers).when(sessionMockBatch).getHeaders();
+		Mockito.doReturn(new ByteArrayInputStream(body)).when(sessionMockBatch).getInputStream();
+
+		released = new JSONArray(returnResponseString(tunnelHttpServer.serve(sessionMockBatch)));
+		assertEquals(2, released.length());
+		assertTrue(tokenDsMock.getAllTokenPorts().isEmpty());
+		assertTrue(tunnelHttpServer.getAllTunnelServers().isEmpty());
+
+	}
+	
 	@Test
 	public void testGetAllTokens() throws Exception {
 
@@ -570,6 +909,79 @@ public class TestTunnelHttpServer {
 		assertEquals(0, tokens.size());
 	}
 
+	@Test
+	public void testRestoreStartsTunnelServers() throws Exception {
+
+		String inMemoryDs = "jdbc:sqlite:"+tempDataBaseFile;
+
+		tokenDsMock = new TokenDataStore(inMemoryDs);
+		tunnelServerDsMock = new TunnelServerDataStore(inMemoryDs);
+
+		for (int sshServerPort = 10; sshServerPort < 13; sshServerPort++) {
+			int serverLowerPort = lowerPort + (sshServerPort - 10) * portsPerShhServer;
+			tunnelServerDsMock.insertTunnelServer(new TunnelServer(sshTunnelHost, sshServerPort, serverLowerPort,
+					serverLowerPort + portsPerShhServer - 1, idleTokenTimeout, hostKeyPath, new ArrayList<Token>()));
+			tokenDsMock.insertTokenPort(new Token("token" + sshServerPort, serverLowerPort, sshServerPort));
+		}
+
+		final Set<Integer> startedServers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		tunnelHttpServer = new TunnelHttpServer(httpPort, sshTunnelHost, lowerSshTunnelPort,
+				higherSshTunnelPort, lowerPort, higherPort, idleTokenTimeout, hostKeyPath, portsPerShhServer,
+				tokenDsMock, tunnelServerDsMock, true, false) {
+			@Override
+			protected boolean startTunnelServer(TunnelServer tunnelServer) {
+				startedServers.add(tunnelServer.getSshTunnelPort());
+				return true;
+			}
+		};
+
+		assertEquals(new HashSet<Integer>(Arrays.asList(10, 11, 12)), startedServers);
+		for (int sshServerPort = 10; sshServerPort < 13; sshServerPort++) {
+			int serverLowerPort = lowerPort + (sshServerPort - 10) * portsPerShhServer;
+			IHTTPSession sessionMockGet = Mockito.mock(IHTTPSession.class);
+			Mockito.doReturn(Method.GET).when(sessionMockGet).getMethod();
+			Mockito.doReturn("localhost:2223/token/token" + sshServerPort).when(sessionMockGet).getUri();
+			assertEquals(String.valueOf(serverLowerPort),
+					returnResponseString(tunnelHttpServer.serve(sessionMockGet)));
+		}
+
+		JSONObject metrics = tunnelHttpServer.getMetrics();
+		assertEquals(3, metrics.getInt("tokens"));
+		assertTrue(metrics.has("restore-time"));
+	}
+
+	@Test
+	public void testGetHostKeyWithETag() throws Exception {
+
+		File hostKeyFile = File.createTempFile("hostkey", ".ser");
+		hostKeyFile.delete();
+		try {
+			tunnelHttpServer = new TunnelHttpServer(httpPort, sshTunnelHost, lowerSshTunnelPort,
+					higherSshTunnelPort, lowerPort, higherPort, idleTokenTimeout, hostKeyFile.getPath(),
+					portsPerShhServer, tokenDsMock, tunnelServerDsMock, false, false);
+
+			IHTTPSession sessionMockGet = Mockito.mock(IHTTPSession.class);
+			Mockito.doReturn(Method.GET).when(sessionMockGet).getMethod();
+			Mockito.doReturn("localhost:2223/hostkey").when(sessionMockGet).getUri();
+
+			Response response = tunnelHttpServer.serve(sessionMockGet);
+			String eTag = response.getHeader("ETag");
+			assertEquals(Response.Status.OK, response.getStatus());
+			assertNotNull(eTag);
+			assertEquals(new HostKey(hostKeyFile.getPath()).getPublicKey(), returnResponseString(response));
+
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put("if-none-match", eTag);
+			Mockito.doReturn(headers).when(sessionMockGet).getHeaders();
+
+			response = tunnelHttpServer.serve(sessionMockGet);
+			assertEquals(Response.Status.NOT_MODIFIED, response.getStatus());
+			assertEquals(eTag, response.getHeader("ETag"));
+		} finally {
+			hostKeyFile.delete();
+		}
+	}
+
 	private String returnResponseString(Response reponse) throws IOException {
 		StringWriter writer = new StringWriter();
 		IOUtils.copy(reponse.getData(), writer, Charsets.UTF_8);
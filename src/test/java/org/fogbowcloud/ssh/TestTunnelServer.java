@@ -0,0 +1,438 @@
+package org.fogbowcloud.ssh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.common.ForwardingFilter;
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.SshdSocketAddress;
+import org.fogbowcloud.ssh.model.Token;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTunnelServer {
+
+	private static final int THREADS = 8;
+
+	private String sshTunnelHost = "10.0.0.10";
+	private int sshTunnelPort = 10;
+	private int lowerPort = 20000;
+	private int higherPort = 29999;
+	private Long idleTokenTimeout = 100000L;
+	private String hostKeyPath = "/path";
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		Logger.getLogger(TunnelServer.class).removeAllAppenders();
+	}
+
+	@Test
+	public void testCreatePortKeepsExistingTokens() {
+		List<Token> tokens = new ArrayList<Token>();
+		tokens.add(new Token("tokenA", lowerPort, sshTunnelPort));
+		tokens.add(new Token("tokenB", lowerPort + 2, sshTunnelPort));
+		TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort + 2,
+				idleTokenTimeout, hostKeyPath, tokens);
+
+		assertEquals(Integer.valueOf(lowerPort), tunnelServer.getPort("tokenA"));
+		assertEquals(1, tunnelServer.getFreePortsNumber());
+		assertEquals(Integer.valueOf(lowerPort + 1), tunnelServer.createPort("tokenC").getPort());
+		assertTrue(tunnelServer.isServerBusy());
+		assertNull(tunnelServer.createPort("tokenD"));
+
+		assertEquals("tokenB", tunnelServer.releasePort(lowerPort + 2).getTokenId());
+		assertNull(tunnelServer.getPort("tokenB"));
+		assertFalse(tunnelServer.isServerBusy());
+	}
+
+	@Test
+	public void testRestoreDropsTokenWithPortOutOfRange() {
+		List<Token> tokens = new ArrayList<Token>();
+		tokens.add(new Token("tokenA", lowerPort, sshTunnelPort));
+		tokens.add(new Token("tokenB", lowerPort + 3, sshTunnelPort));
+		List<String> warnings = captureWarnings();
+		TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort + 2,
+				idleTokenTimeout, hostKeyPath, tokens);
+
+		assertEquals(1, tunnelServer.getActiveTokensNumber());
+		assertEquals(Integer.valueOf(lowerPort), tunnelServer.getPort("tokenA"));
+		assertNull(tunnelServer.getPort("tokenB"));
+		assertEquals(2, tunnelServer.getFreePortsNumber());
+		assertEquals(1, warnings.size());
+		assertTrue(warnings.get(0).contains("tokenB"));
+	}
+
+	@Test
+	public void testRestoreDropsTokenWithPortAlreadyTaken() {
+		List<Token> tokens = new ArrayList<Token>();
+		tokens.add(new Token("tokenA", lowerPort + 1, sshTunnelPort));
+		tokens.add(new Token("tokenB", lowerPort + 1, sshTunnelPort));
+		tokens.add(new Token("tokenA", lowerPort + 2, sshTunnelPort));
+		List<String> warnings = captureWarnings();
+		TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort + 2,
+				idleTokenTimeout, hostKeyPath, tokens);
+
+		assertEquals(1, tunnelServer.getActiveTokensNumber());
+		assertEquals("tokenA", tunnelServer.getToken("tokenA").getTokenId());
+		assertEquals(Integer.valueOf(lowerPort + 1), tunnelServer.getPort("tokenA"));
+		assertNull(tunnelServer.getPort("tokenB"));
+		// Neither dropped token keeps a port
+		assertEquals(2, tunnelServer.getFreePortsNumber());
+		assertEquals(Integer.valueOf(lowerPort), tunnelServer.createPort("tokenC").getPort());
+		assertEquals(Integer.valueOf(lowerPort + 2), tunnelServer.createPort("tokenD").getPort());
+		assertEquals(2, warnings.size());
+		assertTrue(warnings.get(0).contains("tokenB"));
+		assertTrue(warnings.get(1).contains("tokenA"));
+	}
+
+	@Test
+	public void testConcurrentCreatePortGivesUniquePorts() throws Exception {
+		final TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, higherPort,
+				idleTokenTimeout, hostKeyPath, new ArrayList<Token>());
+		final int tokensPerThread = (higherPort - lowerPort + 1) / THREADS;
+		final Set<Integer> ports = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int thread = 0; thread < THREADS; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					int duplicates = 0;
+					for (int i = 0; i < tokensPerThread; i++) {
+						Token token = tunnelServer.createPort("token-" + threadId + "-" + i);
+						if (!ports.add(token.getPort())) {
+							duplicates++;
+						}
+					}
+					return duplicates;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> result : results) {
+			assertEquals(Integer.valueOf(0), result.get(30, TimeUnit.SECONDS));
+		}
+
+		assertEquals(THREADS * tokensPerThread, ports.size());
+		assertEquals(THREADS * tokensPerThread, tunnelServer.getActiveTokensNumber());
+		assertTrue(tunnelServer.isServerBusy());
+	}
+
+	@Test
+	public void testConcurrentCreateAndReleasePort() throws Exception {
+		final TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort + 99,
+				idleTokenTimeout, hostKeyPath, new ArrayList<Token>());
+		final int rounds = 5000;
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int thread = 0; thread < THREADS; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					int errors = 0;
+					for (int i = 0; i < rounds; i++) {
+						String tokenId = "token-" + threadId + "-" + (i % 10);
+						Token token = tunnelServer.createPort(tokenId);
+						if (token == null || !tokenId.equals(tunnelServer.getToken(tokenId).getTokenId())) {
+							errors++;
+							continue;
+						}
+						Token released = tunnelServer.releasePort(token.getPort());
+						if (released == null || !tokenId.equals(released.getTokenId())) {
+							errors++;
+						}
+					}
+					return errors;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> result : results) {
+			assertEquals(Integer.valueOf(0), result.get(30, TimeUnit.SECONDS));
+		}
+
+		assertEquals(0, tunnelServer.getActiveTokensNumber());
+		assertEquals(100, tunnelServer.getFreePortsNumber());
+	}
+
+	@Test
+	public void testConcurrentCreatePortForSameToken() throws Exception {
+		final TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, higherPort,
+				idleTokenTimeout, hostKeyPath, new ArrayList<Token>());
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<Token>> results = new ArrayList<Future<Token>>();
+		for (int thread = 0; thread < THREADS; thread++) {
+			results.add(executor.submit(new Callable<Token>() {
+				@Override
+				public Token call() throws Exception {
+					start.await();
+					return tunnelServer.createPort("tokenA");
+				}
+			}));
+		}
+		start.countDown();
+		Token first = results.get(0).get(30, TimeUnit.SECONDS);
+		for (Future<Token> result : results) {
+			assertEquals(first.getPort(), result.get(30, TimeUnit.SECONDS).getPort());
+		}
+		assertEquals(1, tunnelServer.getActiveTokensNumber());
+		assertEquals(higherPort - lowerPort, tunnelServer.getFreePortsNumber());
+	}
+
+	@Test
+	public void testConcurrentReleaseAndExpireRemoveTokenOnce() throws Exception {
+		final int ports = 50;
+		final TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort
+				+ ports - 1, idleTokenTimeout, hostKeyPath, new ArrayList<Token>());
+		final int rounds = 20000;
+		final AtomicReferenceArray<Token> created = new AtomicReferenceArray<Token>(8);
+		final ConcurrentHashMap<String, AtomicInteger> removals = new ConcurrentHashMap<String, AtomicInteger>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int thread = 0; thread < THREADS; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					Random random = new Random(threadId);
+					start.await();
+					int errors = 0;
+					for (int i = 0; i < rounds; i++) {
+						Token token = tunnelServer.createPort("token-" + threadId + "-" + i);
+						if (token != null) {
+							created.set(random.nextInt(created.length()), token);
+						}
+						Token victim = created.get(random.nextInt(created.length()));
+						if (victim == null) {
+							continue;
+						}
+						Token removed = random.nextBoolean() ? tunnelServer.releasePort(victim.getPort())
+								: tunnelServer.expireToken(victim.getTokenId());
+						if (removed == null) {
+							continue;
+						}
+						AtomicInteger count = new AtomicInteger();
+						AtomicInteger existing = removals.putIfAbsent(removed.getTokenId(), count);
+						if ((existing != null ? existing : count).incrementAndGet() > 1) {
+							errors++;
+						}
+					}
+					return errors;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> result : results) {
+			assertEquals(Integer.valueOf(0), result.get(60, TimeUnit.SECONDS));
+		}
+
+		Set<Integer> livePorts = new HashSet<Integer>();
+		for (Token token : tunnelServer.getAllPorts()) {
+			assertTrue("Port " + token.getPort() + " handed out twice", livePorts.add(token.getPort()));
+		}
+		assertEquals(ports, livePorts.size() + tunnelServer.getFreePortsNumber());
+	}
+
+	@Test
+	public void testCreatePortFailsOnceClosed() {
+		TunnelServer tunnelServer = new TunnelServer(sshTunnelHost, sshTunnelPort, lowerPort, lowerPort + 2,
+				idleTokenTimeout, hostKeyPath, new ArrayList<Token>());
+		Token token = tunnelServer.createPort("tokenA");
+		assertFalse(tunnelServer.closeIfIdle());
+		assertFalse(tunnelServer.isClosed());
+
+		tunnelServer.releasePort(token.getPort());
+		assertTrue(tunnelServer.closeIfIdle());
+		assertFalse(tunnelServer.closeIfIdle());
+		assertTrue(tunnelServer.isServerBusy());
+		assertNull(tunnelServer.createPort("tokenB"));
+		assertEquals(0, tunnelServer.getActiveTokensNumber());
+	}
+
+	@Test
+	public void testSharedSshServerServesTokensOfEachTunnelServer() throws Exception {
+		String host = "127.0.0.1";
+		int sshPortA = 62301;
+		int sshPortB = 62302;
+		File hostKeyFile = File.createTempFile("hostkey", ".ser");
+		hostKeyFile.delete();
+		TokenDirectory tokenDirectory = new TokenDirectory();
+		SharedSshServer sharedSshServer = new SharedSshServer(host,
+				new HostKey(hostKeyFile.getPath(), HostKey.RSA), tokenDirectory);
+		TunnelServer tunnelServerA = new TunnelServer(host, sshPortA, 62311, 62311, idleTokenTimeout,
+				hostKeyFile.getPath(), new ArrayList<Token>());
+		TunnelServer tunnelServerB = new TunnelServer(host, sshPortB, 62312, 62312, idleTokenTimeout,
+				hostKeyFile.getPath(), new ArrayList<Token>());
+		SshClient client = createAgent();
+		ServerSocket agentService = new ServerSocket(0, 50, InetAddress.getByName(host));
+		agentService.setSoTimeout(5000);
+		try {
+			for (TunnelServer tunnelServer : Arrays.asList(tunnelServerA, tunnelServerB)) {
+				tunnelServer.setSharedSshServer(sharedSshServer);
+				tunnelServer.start();
+			}
+			assertEquals(2, sharedSshServer.getBoundPortsNumber());
+			Token tokenA = tunnelServerA.createPort("tokenA");
+			Token tokenB = tunnelServerB.createPort("tokenB");
+			tokenDirectory.register(tokenA, tunnelServerA);
+			tokenDirectory.register(tokenB, tunnelServerB);
+			client.start();
+
+			ClientSession sessionA = connectAgent(client, "tokenA", host, sshPortA);
+			assertForwardAccepted(sessionA, tokenA, host, agentService);
+			ClientSession sessionB = connectAgent(client, "tokenB", host, sshPortB);
+			assertForwardAccepted(sessionB, tokenB, host, agentService);
+
+			ClientSession unknown = client.connect("tokenC", host, sshPortA).await().getSession();
+			unknown.auth().await(5000);
+			int state = unknown.waitFor(ClientSession.CLOSED | ClientSession.AUTHED, 5000);
+			assertEquals(ClientSession.CLOSED, state & (ClientSession.CLOSED | ClientSession.AUTHED));
+
+			tunnelServerA.stop();
+			assertEquals(1, sharedSshServer.getBoundPortsNumber());
+			assertTrue((sessionA.waitFor(ClientSession.CLOSED, 5000) & ClientSession.CLOSED) != 0);
+			try {
+				new Socket(host, sshPortA).close();
+				fail("ssh port of the stopped tunnel server still accepts connections");
+			} catch (ConnectException e) {
+				// expected
+			}
+			assertEquals(0, sessionB.waitFor(ClientSession.CLOSED, 100) & ClientSession.CLOSED);
+			assertForwardAccepted(null, tokenB, host, agentService);
+			connectAgent(client, "tokenB", host, sshPortB).close(true);
+		} finally {
+			agentService.close();
+			client.stop();
+			sharedSshServer.stop(true);
+			hostKeyFile.delete();
+		}
+	}
+
+	/**
+	 * @return the messages the {@link TunnelServer} logs at warn level or above
+	 *         until the end of the test.
+	 */
+	private List<String> captureWarnings() {
+		final List<String> warnings = new ArrayList<String>();
+		final Logger logger = Logger.getLogger(TunnelServer.class);
+		logger.addAppender(new AppenderSkeleton() {
+			@Override
+			protected void append(LoggingEvent event) {
+				if (event.getLevel().isGreaterOrEqual(Level.WARN)) {
+					warnings.add(event.getRenderedMessage());
+				}
+			}
+
+			@Override
+			public boolean requiresLayout() {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		return warnings;
+	}
+
+	/**
+	 * An ssh client that, like the agents, connects the channels of its remote
+	 * forwards to a local service.
+	 */
+	private SshClient createAgent() {
+		SshClient client = SshClient.setUpDefaultClient();
+		client.setTcpipForwardingFilter(new ForwardingFilter() {
+			@Override
+			public boolean canListen(SshdSocketAddress address, Session session) {
+				return false;
+			}
+
+			@Override
+			public boolean canForwardX11(Session session) {
+				return false;
+			}
+
+			@Override
+			public boolean canForwardAgent(Session session) {
+				return false;
+			}
+
+			@Override
+			public boolean canConnect(SshdSocketAddress address, Session session) {
+				return true;
+			}
+		});
+		return client;
+	}
+
+	private ClientSession connectAgent(SshClient client, String tokenId, String host, int sshPort)
+			throws Exception {
+		ClientSession session = client.connect(tokenId, host, sshPort).await().getSession();
+		session.auth().verify();
+		return session;
+	}
+
+	/**
+	 * Opens a connection to the port of the token and checks it reaches the
+	 * service of the agent, forwarding the port first if session isn't null.
+	 */
+	private void assertForwardAccepted(ClientSession session, Token token, String host, ServerSocket agentService)
+			throws Exception {
+		if (session != null) {
+			session.startRemotePortForwarding(new SshdSocketAddress(host, token.getPort()),
+					new SshdSocketAddress(host, agentService.getLocalPort()));
+		}
+		Socket client = new Socket(host, token.getPort());
+		try {
+			Socket forwarded = agentService.accept();
+			forwarded.close();
+		} finally {
+			client.close();
+		}
+	}
+
+}